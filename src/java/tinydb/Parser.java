@@ -16,9 +16,11 @@ import tinydb.execution.*;
 import tinydb.optimizer.LogicalPlan;
 import tinydb.optimizer.TableStats;
 import tinydb.storage.IntField;
+import tinydb.storage.PageId;
 import tinydb.storage.StringField;
 import tinydb.storage.Tuple;
 import tinydb.storage.TupleDesc;
+import tinydb.transaction.LockProfiler;
 import tinydb.transaction.Transaction;
 import tinydb.transaction.TransactionAbortedException;
 import tinydb.transaction.TransactionId;
@@ -283,6 +285,8 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    // SET synchronous_commit for the transactions of this session
+    private boolean synchronousCommit = true;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
@@ -393,7 +397,10 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        Insert insert = new Insert(tId, newTups, tableId);
+        // INSERT ... SELECT may add many tuples
+        insert.useBufferRing(s.getValues() == null);
+        insertQ.setPhysicalPlan(insert);
         return insertQ;
     }
 
@@ -440,10 +447,10 @@ public class Parser {
                             "No transaction is currently running");
                 }
                 curtrans.commit();
-                curtrans = null;
-                inUserTrans = false;
                 System.out.println("Transaction " + curtrans.getId().getId()
                         + " committed.");
+                curtrans = null;
+                inUserTrans = false;
                 break;
             case "ROLLBACK":
                 if (curtrans == null) {
@@ -451,10 +458,10 @@ public class Parser {
                             "No transaction is currently running");
                 }
                 curtrans.abort();
-                curtrans = null;
-                inUserTrans = false;
                 System.out.println("Transaction " + curtrans.getId().getId()
                         + " aborted.");
+                curtrans = null;
+                inUserTrans = false;
 
                 break;
             case "SET TRANSACTION":
@@ -463,10 +470,17 @@ public class Parser {
                             "Can't start new transactions until current transaction has been committed or rolledback.");
                 }
                 curtrans = new Transaction();
-                curtrans.start();
+                curtrans.setSynchronousCommit(synchronousCommit);
+                // SET TRANSACTION READ ONLY reads a snapshot without locks
+                if (s.isReadOnly()) {
+                    curtrans.startReadOnly();
+                } else {
+                    curtrans.start();
+                }
                 inUserTrans = true;
-                System.out.println("Started a new transaction tid = "
-                        + curtrans.getId().getId());
+                System.out.println("Started a new "
+                        + (s.isReadOnly() ? "read-only " : "")
+                        + "transaction tid = " + curtrans.getId().getId());
                 break;
             default:
                 throw new ParsingException("Unsupported operation");
@@ -499,7 +513,73 @@ public class Parser {
         return curtrans;
     }
 
+    /** Number of pages SHOW LOCKS lists */
+    static final int SHOW_LOCKS_TOP_PAGES = 10;
+
+    /**
+     * @return true if s is the SHOW LOCKS command, which Zql cannot parse
+     */
+    static boolean isShowLocks(String s) {
+        return s.trim().replaceAll("\\s+", " ").equalsIgnoreCase("show locks;");
+    }
+
+    /**
+     * Print the lock statistics of every table and the most contended pages.
+     */
+    public void handleShowLocks() {
+        LockProfiler profiler = Database.getBufferPool().getLockProfiler();
+        System.out.println(profiler.getTotal());
+        System.out.println("Tables:");
+        for (LockProfiler.Stats t : profiler.getTables()) {
+            System.out.println("\t" + tableName((Integer) t.getKey()) + " " + t.countersToString());
+        }
+        System.out.println("Top " + SHOW_LOCKS_TOP_PAGES + " contended pages:");
+        for (LockProfiler.Stats p : profiler.getTopContendedPages(SHOW_LOCKS_TOP_PAGES)) {
+            PageId pid = (PageId) p.getKey();
+            System.out.println("\t" + tableName(pid.getTableId()) + " page " + pid.getPageNumber() + " "
+                    + p.countersToString());
+        }
+    }
+
+    /**
+     * @return true if s is SET synchronous_commit = on|off, which Zql cannot parse
+     */
+    static boolean isSetSynchronousCommit(String s) {
+        return s.trim().replaceAll("\\s+", " ").toLowerCase()
+                .matches("set synchronous_commit ?(=|to) ?(on|off) ?;");
+    }
+
+    /**
+     * Set whether the transactions this session starts from now on wait for
+     * their commit record to reach the disk, see
+     * {@link Transaction#setSynchronousCommit(boolean)}. The running
+     * transaction, if any, is changed too.
+     */
+    public void handleSetSynchronousCommit(String s) {
+        synchronousCommit = !s.trim().toLowerCase().replaceAll("[\\s;]", "").endsWith("off");
+        if (curtrans != null) {
+            curtrans.setSynchronousCommit(synchronousCommit);
+        }
+        System.out.println("synchronous_commit is " + (synchronousCommit ? "on" : "off"));
+    }
+
+    private static String tableName(int tableId) {
+        try {
+            return Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return "table " + tableId;
+        }
+    }
+
     public void processNextStatement(String s) throws TransactionAbortedException {
+        if (isShowLocks(s)) {
+            handleShowLocks();
+            return;
+        }
+        if (isSetSynchronousCommit(s)) {
+            handleSetSynchronousCommit(s);
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
@@ -514,6 +594,7 @@ public class Parser {
             } else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setSynchronousCommit(synchronousCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -581,7 +662,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "show locks" };
 
     public static void main(String[] argv) throws IOException, TransactionAbortedException {
 
@@ -683,8 +764,14 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    if (isShowLocks(cmd)) {
+                        handleShowLocks();
+                    } else if (isSetSynchronousCommit(cmd)) {
+                        handleSetSynchronousCommit(cmd);
+                    } else {
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                    }
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
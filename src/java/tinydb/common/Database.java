@@ -2,6 +2,8 @@ package tinydb.common;
 
 import tinydb.storage.BufferPool;
 import tinydb.storage.LogFile;
+import tinydb.transaction.DeadlockPolicy;
+import tinydb.transaction.DetectingDeadlockPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -19,10 +21,13 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private volatile DeadlockPolicy _deadlockPolicy = new DetectingDeadlockPolicy();
 
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool.setDeadlockPolicy(_deadlockPolicy);
+        _bufferpool.getLockProfiler().register();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -49,16 +54,40 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the deadlock policy of the static Database instance */
+    public static DeadlockPolicy getDeadlockPolicy() {
+        return _instance.get()._deadlockPolicy;
+    }
+
+    /**
+     * Set how the static Database instance resolves lock waits that may be
+     * deadlocked; the policy is kept when the buffer pool is reset
+     */
+    public static void setDeadlockPolicy(DeadlockPolicy policy) {
+        _instance.get()._deadlockPolicy = policy;
+        getBufferPool().setDeadlockPolicy(policy);
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- replace the buffer pool with a specially
+     * configured one and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
+        bufferPool.setDeadlockPolicy(getDeadlockPolicy());
+        bufferPool.getLockProfiler().register();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
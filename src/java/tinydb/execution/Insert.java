@@ -4,6 +4,7 @@ import tinydb.common.Database;
 import tinydb.common.DbException;
 import tinydb.common.Type;
 import tinydb.storage.BufferPool;
+import tinydb.storage.BufferRing;
 import tinydb.storage.IntField;
 import tinydb.storage.Tuple;
 import tinydb.storage.TupleDesc;
@@ -28,6 +29,8 @@ public class Insert extends Operator {
     // helper for fetchNext
     private int counter;
     private boolean called;
+    private boolean useRing = false;
+    private BufferRing ring;
 
 
     /**
@@ -51,6 +54,14 @@ public class Insert extends Operator {
         this.called = false;
     }
 
+    /**
+     * 批量插入时，查找空闲槽位所读入的页面只占用一个私有的 {@link BufferRing}。
+     * Takes effect at the next open().
+     */
+    public void useBufferRing(boolean useRing) {
+        this.useRing = useRing;
+    }
+
     @Override
     public TupleDesc getTupleDesc() {
         return this.td;
@@ -61,6 +72,7 @@ public class Insert extends Operator {
     public void open() throws DbException, TransactionAbortedException {
 
         this.counter = 0;
+        this.ring = useRing ? Database.getBufferPool().newBufferRing() : null;
         this.child.open();
         super.open();
     }
@@ -93,7 +105,7 @@ public class Insert extends Operator {
         while (this.child.hasNext()) {
             Tuple t = this.child.next();
             try {
-                Database.getBufferPool().insertTuple(this.tid, this.tableId, t);
+                Database.getBufferPool().insertTuple(this.tid, this.tableId, t, this.ring);
                 this.counter++;
             } catch (IOException e) {
                 e.printStackTrace();
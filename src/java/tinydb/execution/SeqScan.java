@@ -4,6 +4,7 @@ import tinydb.common.Database;
 import tinydb.transaction.TransactionAbortedException;
 import tinydb.transaction.TransactionId;
 import tinydb.common.DbException;
+import tinydb.storage.DbFile;
 import tinydb.storage.DbFileIterator;
 import tinydb.storage.Tuple;
 import tinydb.storage.TupleDesc;
@@ -21,6 +22,7 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator it;
+    private boolean useRing = false;
 
     /**
      * 在指定的表上创建顺序扫描作为指定事务的一部分
@@ -63,9 +65,22 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * 大表扫描使用私有的 {@link tinydb.storage.BufferRing}，读入的页面不会挤出缓冲池中的其他页面。
+     * Takes effect at the next open().
+     */
+    public void useBufferRing(boolean useRing) {
+        this.useRing = useRing;
+    }
+
+    public boolean isUsingBufferRing() {
+        return useRing;
+    }
+
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        it = useRing ? file.iterator(tid, Database.getBufferPool().newBufferRing()) : file.iterator(tid);
         it.open();
     }
 
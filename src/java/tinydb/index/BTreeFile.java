@@ -101,7 +101,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				return new BTreeRootPtrPage(id, pageBuf);
+				return decodePage(id, pageBuf);
 			} else {
 				byte[] pageBuf = new byte[BufferPool.getPageSize()];
 				if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
@@ -118,13 +118,7 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if (id.pgcateg() == BTreePageId.INTERNAL) {
-					return new BTreeInternalPage(id, pageBuf, keyField);
-				} else if (id.pgcateg() == BTreePageId.LEAF) {
-					return new BTreeLeafPage(id, pageBuf, keyField);
-				} else { // id.pgcateg() == BTreePageId.HEADER
-					return new BTreeHeaderPage(id, pageBuf);
-				}
+				return decodePage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -133,6 +127,30 @@ public class BTreeFile implements DbFile {
 		// Ignore failures closing the file
 	}
 
+	/**
+	 * 根据页面类别从字节构造页面
+	 *
+	 * @param pid - the id of the page, must be a BTreePageId
+	 * @param data - the bytes of the page
+	 */
+	@Override
+	public Page decodePage(PageId pid, byte[] data) {
+		BTreePageId id = (BTreePageId) pid;
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				return new BTreeRootPtrPage(id, data);
+			} else if (id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, data, keyField);
+			} else if (id.pgcateg() == BTreePageId.LEAF) {
+				return new BTreeLeafPage(id, data, keyField);
+			} else { // id.pgcateg() == BTreePageId.HEADER
+				return new BTreeHeaderPage(id, data);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("invalid page " + id.getPageNumber(), e);
+		}
+	}
+
 	/**
 	 *
 	 * 将页写入磁盘。这不应该直接调用，但应该在将页刷新到磁盘时从缓冲池调用
@@ -1231,6 +1249,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	final ReadAhead readAhead = new ReadAhead();
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1255,6 +1274,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
 		it = curp.iterator();
+		readAhead.reset();
 	}
 
 	/**
@@ -1276,6 +1296,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.follow(nextp, p -> ((BTreeLeafPage) p).getRightSiblingId());
 				it = curp.iterator();
 				if (!it.hasNext()) {
 					it = null;
@@ -1316,6 +1337,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	final ReadAhead readAhead = new ReadAhead();
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1350,6 +1372,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			curp = f.findLeafPage(tid, root, null);
 		}
 		it = curp.iterator();
+		readAhead.reset();
 	}
 
 	/**
@@ -1388,6 +1411,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				// only scans that run to the end of the leaf chain read ahead
+				if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+					readAhead.follow(nextp, p -> ((BTreeLeafPage) p).getRightSiblingId());
+				}
 				it = curp.iterator();
 			}
 		}
@@ -263,7 +263,7 @@ public class BTreeHeaderPage implements Page {
 	 * that did the dirtying
 	 */
 	@Override
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -272,7 +272,7 @@ public class BTreeHeaderPage implements Page {
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
 	@Override
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
@@ -132,7 +132,7 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	@Override
-	public void markDirty(boolean dirty, TransactionId tid){
+	public synchronized void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) {
 			this.dirtier = tid;
@@ -140,7 +140,7 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	@Override
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
@@ -290,7 +290,12 @@ public class LogicalPlan {
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats stats = baseTableStats.get(baseTableName);
+            // large scans would flush the buffer pool
+            if (stats != null && Database.getBufferPool().isLargeScan(stats.numPages())) {
+                ss.useBufferRing(true);
+            }
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -101,6 +101,8 @@ public class TableStats {
 
         TransactionId tid = new TransactionId();
         SeqScan scan = new SeqScan(tid,tableid,"");
+        // statistics read the whole table, keep it out of the shared pool
+        scan.useBufferRing(true);
         try{
             scan.open();
             for(int i=0;i<numFields;++i){
@@ -163,6 +165,7 @@ public class TableStats {
     private void addValueToHist(){
         TransactionId tid = new TransactionId();
         SeqScan scan = new SeqScan(tid,tableid,"");
+        scan.useBufferRing(true);
         try{
             scan.open();
             while(scan.hasNext()){
@@ -187,6 +190,13 @@ public class TableStats {
     }
 
 
+    /**
+     * @return the number of pages of the table when the statistics were computed
+     */
+    public int numPages() {
+        return numPages;
+    }
+
     public double estimateScanCost() {
         HeapFile heapFile = (HeapFile)dbFile;
         return heapFile.numPages() * ioCostPerPage;
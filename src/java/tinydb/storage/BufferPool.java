@@ -3,19 +3,45 @@ package tinydb.storage;
 import tinydb.common.Database;
 import tinydb.common.Permissions;
 import tinydb.common.DbException;
+import tinydb.transaction.ConcurrencyControl;
+import tinydb.transaction.DeadlockPolicy;
+import tinydb.transaction.LockManager;
+import tinydb.transaction.LockMode;
+import tinydb.transaction.LockProfiler;
+import tinydb.transaction.TableLockId;
 import tinydb.transaction.TransactionAbortedException;
 import tinydb.transaction.TransactionId;
 
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Vector;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 检查 锁  获取页面
+ * <p>
+ * The pool is split into shards keyed by PageId hash. Each shard has its own
+ * page table, replacement state and latch; the number of resident pages is
+ * bounded by a single global budget of numPages.
+ * <p>
+ * Optionally the bytes of resident pages live in an off-heap
+ * {@link PageFrameArena}; Page objects are then decoded from their frame on
+ * access and only pages that may be written are kept on the heap.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -28,158 +54,627 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Upper bound on the number of shards chosen by default. */
+    public static final int DEFAULT_SHARDS = 16;
+
+    /** Pools are not split into shards smaller than this by default. */
+    private static final int MIN_PAGES_PER_SHARD = 8;
+
+    /** Default fraction of the pool the page cleaner keeps clean. */
+    public static final double DEFAULT_CLEAN_PAGE_TARGET = 0.25;
+
+    /** Default upper bound on page cleaner writes per second. */
+    public static final int DEFAULT_CLEANER_WRITES_PER_SECOND = 200;
+
+    /** Upper bound on the read-ahead window of a scan, in pages. */
+    public static final int MAX_READ_AHEAD_PAGES = 32;
+
+    /** Scans larger than this fraction of the pool should use a BufferRing. */
+    public static final double RING_SCAN_THRESHOLD = 0.25;
+
+    /** Default number of page locks a transaction takes on one table before they are escalated to a table lock. */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 1000;
+
+    /** Number of threads that perform read-ahead. */
+    private static final int READ_AHEAD_THREADS = 2;
+
+    // read-ahead workers shared by all pools, so that replacing the pool
+    // does not leave idle threads behind; started on first use
+    private static final ExecutorService READ_AHEAD_EXECUTOR =
+            Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+                Thread t = new Thread(r, "read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+
     private final int numPages;
 //    private final ConcurrentHashMap<Integer,Page> pageStore;
 
-    private final ConcurrentHashMap<PageId,Page> pageStore;
+    private final BufferPoolShard[] shards;
+    // null unless page bytes are kept off-heap
+    private final PageFrameArena arena;
+    // frames in use or reserved across all shards, never more than numPages
+    private final AtomicInteger residentPages = new AtomicInteger(0);
 
-    // transaction
-    private int age;
-    private final ConcurrentHashMap<PageId,Integer> pageAge;
-    private PageLockManager lockManager;
+    // background writer, null unless started
+    private volatile PageCleaner cleaner;
+    private double cleanPageTarget = DEFAULT_CLEAN_PAGE_TARGET;
+    private int cleanerWritesPerSecond = DEFAULT_CLEANER_WRITES_PER_SECOND;
+
+    // pages being read from disk, so that each miss is read only once
+    private final ConcurrentHashMap<PageId,CountDownLatch> loading = new ConcurrentHashMap<>();
 
+    // transaction
+    private final LockManager lockManager = new LockManager();
+    // pages admitted as dirty by each running transaction, see updateBufferPool,
+    // and pages it may have written under a table lock
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirtiedPages = new ConcurrentHashMap<>();
+    // number of page locks each running transaction holds, per table
+    private final ConcurrentHashMap<TransactionId,ConcurrentHashMap<Integer,AtomicInteger>> pageLockCounts = new ConcurrentHashMap<>();
+    private volatile int lockEscalationThreshold = DEFAULT_LOCK_ESCALATION_THRESHOLD;
+    // heap tables locked row by row, see setRecordLocking
+    private final Set<Integer> recordLockedTables = ConcurrentHashMap.newKeySet();
+    // row changes of each running transaction on record-locked pages
+    private final ConcurrentHashMap<TransactionId,List<RecordChange>> recordChanges = new ConcurrentHashMap<>();
+    // running transactions with row changes on each record-locked page;
+    // changed only under the page's monitor
+    private final ConcurrentHashMap<PageId,Set<TransactionId>> recordWriters = new ConcurrentHashMap<>();
+    // old committed page versions, for transactions reading a snapshot
+    private final PageVersionStore versions = new PageVersionStore();
+    // snapshot timestamp of each running read-only transaction
+    private final ConcurrentHashMap<TransactionId,Long> snapshots = new ConcurrentHashMap<>();
+
+    private volatile ConcurrencyControl concurrencyControl = ConcurrencyControl.LOCKING;
+    private final ConcurrentHashMap<TransactionId,OptimisticTransaction> optimistic = new ConcurrentHashMap<>();
+    // number of commits that changed each page, counted while optimistic transactions run
+    private final ConcurrentHashMap<PageId,Long> pageWriteCounts = new ConcurrentHashMap<>();
+    // guarded by pageWriteCounts
+    private volatile int runningOptimistic = 0;
+
+    // eviction may write dirty pages of running transactions (STEAL)
+    private volatile boolean steal = false;
+    // commits log their pages instead of writing them (NO-FORCE)
+    private volatile boolean noForce = false;
+    // pages a NO-FORCE commit left dirty, with the committed transaction they
+    // are marked dirty by; their committed contents are not on disk yet
+    private final ConcurrentHashMap<PageId,TransactionId> unwrittenPages = new ConcurrentHashMap<>();
 
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using scan-resistant
+     * LRU-K replacement.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, defaultShards(numPages), () -> new LruKReplacementPolicy(numPages));
+    }
 
-    private class Lock{
-        TransactionId tid;
-        int lockType;   // 0 for shared lock and 1 for exclusive lock
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independent partitions of the pool
+     * @param policyFactory creates the replacement policy of each shard
+     */
+    public BufferPool(int numPages, int numShards, Supplier<ReplacementPolicy> policyFactory) {
+        this(numPages, numShards, policyFactory, false);
+    }
 
-        public Lock(TransactionId tid,int lockType){
-            this.tid = tid;
-            this.lockType = lockType;
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independent partitions of the pool
+     * @param policyFactory creates the replacement policy of each shard
+     * @param offHeap if true, page bytes are kept in a preallocated off-heap
+     *     arena of numPages frames instead of as Page objects on the heap
+     */
+    public BufferPool(int numPages, int numShards, Supplier<ReplacementPolicy> policyFactory, boolean offHeap) {
+        if(numShards < 1){
+            throw new IllegalArgumentException("a buffer pool needs at least one shard");
+        }
+        this.numPages = numPages;
+        this.arena = offHeap ? new PageFrameArena(numPages, pageSize) : null;
+        shards = new BufferPoolShard[numShards];
+        for(int i=0;i<numShards;++i){
+            shards[i] = new BufferPoolShard(policyFactory.get(), arena);
         }
+
+        // transaction
+
     }
 
+    private static int defaultShards(int numPages) {
+        return Math.max(1, Math.min(DEFAULT_SHARDS, numPages / MIN_PAGES_PER_SHARD));
+    }
 
-    private class PageLockManager{
-        ConcurrentHashMap<PageId,Vector<Lock>> lockMap;
+    private BufferPoolShard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+    
+    public static int getPageSize() {
+      return pageSize;
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
 
-        public PageLockManager(){
-            lockMap = new ConcurrentHashMap<PageId,Vector<Lock>>();
+    /**
+     * @return the number of pages resident in all shards, never more than
+     *     {@link #getNumPages()}
+     */
+    public int getResidentPageCount() {
+        return residentPageCount(0);
+    }
+
+    // holds the latches of shards from..end in order, so that a frame
+    // moving between shards is not counted twice
+    private int residentPageCount(int from) {
+        if(from == shards.length){
+            return 0;
+        }
+        synchronized (shards[from]){
+            return shards[from].size() + residentPageCount(from + 1);
         }
+    }
 
-        public synchronized boolean acquireLock(PageId pid,TransactionId tid,int lockType){
-            // if no lock held on pid
-            if(lockMap.get(pid) == null){
-                Lock lock = new Lock(tid,lockType);
-                Vector<Lock> locks = new Vector<>();
-                locks.add(lock);
-                lockMap.put(pid,locks);
+    /**
+     * Start a background thread that writes dirty pages ahead of eviction
+     * pressure, see {@link #setCleanPageTarget} and
+     * {@link #setMaxCleanerWritesPerSecond}. Pages of running transactions may
+     * be written, protected by their log records, so such transactions must be
+     * aborted through the log ({@link tinydb.transaction.Transaction#abort()}).
+     */
+    public synchronized void startPageCleaner() {
+        if(cleaner == null){
+            cleaner = new PageCleaner(this, cleanPageTarget, cleanerWritesPerSecond);
+            cleaner.start();
+        }
+    }
 
-                return true;
-            }
+    /**
+     * Stop the background page cleaner, if it runs.
+     */
+    public synchronized void stopPageCleaner() {
+        if(cleaner != null){
+            cleaner.shutdown();
+            cleaner = null;
+        }
+    }
 
-            // if some Tx holds lock on pid
-            // locks.size() won't be 0 because releaseLock will remove 0 size locks from lockMap
-            Vector<Lock> locks = lockMap.get(pid);
+    /**
+     * @param fraction fraction of the pool, free frames included, that the
+     *     page cleaner tries to keep clean
+     */
+    public synchronized void setCleanPageTarget(double fraction) {
+        if(fraction < 0 || fraction > 1){
+            throw new IllegalArgumentException("clean page target must be between 0 and 1");
+        }
+        cleanPageTarget = fraction;
+        if(cleaner != null){
+            cleaner.setCleanTarget(fraction);
+        }
+    }
 
-            // if tid already holds lock on pid
-            for(Lock lock:locks){
-                if(lock.tid == tid){
-                    // already hold that lock
-                    if(lock.lockType == lockType) {
-                        return true;
-                    }
-                    // already hold exclusive lock when acquire shared lock
-                    if(lock.lockType == 1) {
-                        return true;
-                    }
-                    // already hold shared lock,upgrade to exclusive lock
-                    if(locks.size()==1){
-                        lock.lockType = 1;
-                        return true;
-                    }else{
-                        return false;
-                    }
-                }
-            }
+    /**
+     * @param writes maximum number of pages the page cleaner writes per second
+     */
+    public synchronized void setMaxCleanerWritesPerSecond(int writes) {
+        if(writes < 1){
+            throw new IllegalArgumentException("the page cleaner must be allowed to write");
+        }
+        cleanerWritesPerSecond = writes;
+        if(cleaner != null){
+            cleaner.setMaxWritesPerSecond(writes);
+        }
+    }
 
-            // if the lock is a exclusive lock
-            if (locks.get(0).lockType ==1){
-                assert locks.size() == 1 : "exclusive lock can't coexist with other locks";
-                return false;
-            }
+    /**
+     * @param pages number of page locks a transaction may hold on one table;
+     *     taking one more escalates them to a single table lock
+     */
+    public void setLockEscalationThreshold(int pages) {
+        if(pages < 1){
+            throw new IllegalArgumentException("the lock escalation threshold must be positive");
+        }
+        lockEscalationThreshold = pages;
+    }
 
-            // if no exclusive lock is held, there could be multiple shared locks
-            if(lockType == 0){
-                Lock lock = new Lock(tid,0);
-                locks.add(lock);
-                lockMap.put(pid,locks);
+    /**
+     * Choose how lock waits that may be deadlocked are resolved, see
+     * {@link LockManager}.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
 
-                return true;
-            }
-            // can not acquire a exclusive lock when there are shard locks on pid
-            return false;
+    /**
+     * @return lock acquisition and wait statistics of this buffer pool
+     */
+    public LockProfiler getLockProfiler() {
+        return lockManager.getProfiler();
+    }
+
+    /**
+     * @return the number of transactions aborted by the deadlock policy
+     */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /**
+     * Lock the rows of a heap table instead of its pages.
+     * <p>
+     * 开启后，对该表的插入和删除只在页面上加意向锁（IS/IX），在 RecordId 上加 S/X 锁，
+     * 对页面的物理修改只在修改期间持有页面的监视器（短时间的 latch），所以修改同一页面上
+     * 不同行的事务可以并发执行。扫描同样以行为单位加共享锁。
+     *
+     * @param tableId the id of a HeapFile
+     */
+    public void setRecordLocking(int tableId, boolean enabled) {
+        if(enabled){
+            recordLockedTables.add(tableId);
+        }else{
+            recordLockedTables.remove(tableId);
         }
+    }
 
+    public boolean isRecordLocking(int tableId) {
+        return recordLockedTables.contains(tableId);
+    }
 
-        public synchronized boolean releaseLock(PageId pid,TransactionId tid){
-            // if not a single lock is held on pid
-            System.out.println(lockMap.size());
-            System.out.println("pid的 value: "+ pid);
-            System.out.println("锁编号为： "+ lockMap.get(pid));
-            assert lockMap.get(pid) != null : "page not locked!";
-            Vector<Lock> locks = lockMap.get(pid);
+    /**
+     * @return true if tid locks the rows of a table one by one; snapshot
+     *     readers and optimistic transactions lock nothing while they run,
+     *     so they use whole pages
+     */
+    boolean locksRecords(TransactionId tid, int tableId) {
+        return isRecordLocking(tableId) && !isSnapshot(tid) && !isOptimistic(tid);
+    }
 
-            for(int i=0;i<locks.size();++i){
-                Lock lock = locks.get(i);
+    /**
+     * Let tid read a snapshot of everything committed so far: getPage then
+     * returns the committed pages as of now, without taking any locks, and
+     * refuses to return pages for writing. The returned pages may be shared
+     * with other readers and must not be modified.
+     * <p>
+     * 快照读取靠页面版本实现：提交时，被修改页面原来的已提交内容（before image）只要还有快照
+     * 可能需要就会保留下来，快照结束后回收。读者与写者互不阻塞。
+     */
+    public void beginSnapshot(TransactionId tid) {
+        snapshots.computeIfAbsent(tid, k -> versions.beginSnapshot());
+    }
 
-                // release lock
-                if(lock.tid == tid){
-                    locks.remove(lock);
+    /**
+     * @return true if tid reads a snapshot, see {@link #beginSnapshot}
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
 
-                    // if the last lock is released
-                    // remove 0 size locks from lockMap
-                    if(locks.size() == 0) {
-                        lockMap.remove(pid);
-                    }
-                    return true;
+    /**
+     * @return the number of old page versions kept for running snapshots
+     */
+    public int getRetainedVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * Choose how transactions started from now on are kept serializable,
+     * see {@link ConcurrencyControl}.
+     * <p>
+     * 乐观模式下事务读取不加锁、只写私有副本，提交时才加锁并验证读过的页面，
+     * 冲突少时省去了锁等待；冲突多时验证失败的事务只能中止重做。
+     */
+    public void setConcurrencyControl(ConcurrencyControl cc) {
+        concurrencyControl = cc;
+    }
+
+    public ConcurrencyControl getConcurrencyControl() {
+        return concurrencyControl;
+    }
+
+    /**
+     * Choose whether eviction may write out and evict dirty pages of running
+     * transactions (STEAL) or only clean pages (NO-STEAL, the default).
+     * <p>
+     * STEAL 模式下缓冲池满时，先把页面的更新记录（含前像）刷到日志，再把未提交的脏页
+     * 写回磁盘并淘汰；事务中止或崩溃恢复时用日志中的前像撤销。这样修改的页面数超过
+     * 缓冲池大小的事务也能完成。
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Choose whether a commit writes the pages it changed (FORCE, the
+     * default) or only logs them (NO-FORCE).
+     * <p>
+     * NO-FORCE 模式下提交只写日志并刷盘，脏页留在缓冲池里，等淘汰、检查点或后台清理线程
+     * 再写回；崩溃后由 {@link LogFile#recover()} 重做已提交的更新。提交的延迟因此
+     * 与写集大小无关。
+     */
+    public void setNoForce(boolean noForce) {
+        this.noForce = noForce;
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /**
+     * @return the number of pages with committed changes not written yet
+     */
+    public int getUnwrittenPageCount() {
+        return unwrittenPages.size();
+    }
+
+    /**
+     * Register a transaction that starts running; under optimistic
+     * concurrency control its reads take no locks from now on, and its
+     * writes stay private until {@link #prepareCommit}.
+     */
+    public void beginTransaction(TransactionId tid) {
+        if(concurrencyControl != ConcurrencyControl.OPTIMISTIC){
+            return;
+        }
+        synchronized (pageWriteCounts) {
+            runningOptimistic++;
+        }
+        optimistic.put(tid, new OptimisticTransaction());
+    }
+
+    /**
+     * @return true if tid runs under optimistic concurrency control and has
+     *     not been validated yet
+     */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimistic.containsKey(tid);
+    }
+
+    private OptimisticTransaction endOptimistic(TransactionId tid) {
+        OptimisticTransaction occ = optimistic.remove(tid);
+        if(occ != null){
+            synchronized (pageWriteCounts) {
+                if(--runningOptimistic == 0){
+                    // nobody will validate against these any more
+                    pageWriteCounts.clear();
                 }
             }
-            // not found tid in tids which lock on pid
-            return false;
         }
+        return occ;
+    }
+
+    /**
+     * Count a commit that changed a page, after the change became visible.
+     */
+    private void countWrite(PageId pid) {
+        if(runningOptimistic > 0){
+            pageWriteCounts.merge(pid, 1L, Long::sum);
+        }
+    }
 
+    /**
+     * @return the largest number of pages a single scan may read ahead, a
+     *     quarter of the pool so that read-ahead does not flush it
+     */
+    public int getMaxReadAheadPages() {
+        return Math.min(MAX_READ_AHEAD_PAGES, numPages / 4);
+    }
 
-        public synchronized boolean holdsLock(PageId pid,TransactionId tid){
-            // if not a single lock is held on pid
-            if(lockMap.get(pid) == null) {
-                return false;
+    /**
+     * @return a ring large enough for the read-ahead of one scan, and at
+     *     most half of the pool
+     */
+    public BufferRing newBufferRing() {
+        int pages = Math.max(BufferRing.DEFAULT_RING_PAGES, 2 * getMaxReadAheadPages());
+        return new BufferRing(Math.max(1, Math.min(pages, numPages / 2)));
+    }
+
+    /**
+     * @return true if a scan of the given number of pages should go through
+     *     a BufferRing, i.e. it would take more than
+     *     {@link #RING_SCAN_THRESHOLD} of the pool
+     */
+    public boolean isLargeScan(int pages) {
+        return pages > numPages * RING_SCAN_THRESHOLD;
+    }
+
+    /**
+     * Bring pages of one file into the pool in the background, ahead of a
+     * scan that will read them. No locks are taken: the scan still locks
+     * every page through getPage. Pages that are resident are skipped, and
+     * read-ahead gives up quietly if the pool is full of dirty pages.
+     *
+     * @param pids ids of pages of a single file, consecutive pages are read
+     *     with one request
+     * @param ring the ring of the scan, or null to read into the shared pool
+     */
+    public void prefetch(List<PageId> pids, BufferRing ring) {
+        if(pids.isEmpty()){
+            return;
+        }
+        READ_AHEAD_EXECUTOR.execute(() -> {
+            try{
+                prefetchPages(pids, ring);
+            }catch(DbException | IllegalArgumentException | NoSuchElementException e){
+                // read-ahead is only a hint
             }
-            Vector<Lock> locks = lockMap.get(pid);
+        });
+    }
 
-            // check if a tid exist in pid's vector of locks
-            for(Lock lock:locks){
-                if(lock.tid == tid){
-                    return true;
+    /**
+     * Bring up to count pages of a chain into the pool in the background,
+     * starting at first, see {@link #prefetch}.
+     *
+     * @param link returns the id of the page after the given one, or null
+     */
+    public void prefetchChain(PageId first, int count, Function<Page,PageId> link) {
+        READ_AHEAD_EXECUTOR.execute(() -> {
+            try{
+                PageId pid = first;
+                for(int i=0;i<count && pid != null;++i){
+                    pid = link.apply(loadPage(shardFor(pid), pid, true, null));
                 }
+            }catch(DbException | IllegalArgumentException | NoSuchElementException | ClassCastException e){
+                // read-ahead is only a hint
             }
-            return false;
-        }
+        });
     }
 
+    private void prefetchPages(List<PageId> pids, BufferRing ring) throws DbException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pids.get(0).getTableId());
+        // shard epochs must be taken before the residency check and the read
+        Map<PageId,Long> seen = new HashMap<>();
+        Map<PageId,CountDownLatch> claimed = new HashMap<>();
+        List<PageId> missing = new ArrayList<>();
+        try{
+            for(PageId pid:pids){
+                BufferPoolShard shard = shardFor(pid);
+                long removals = shard.removals();
+                if(shard.contains(pid)){
+                    continue;
+                }
+                CountDownLatch done = new CountDownLatch(1);
+                // pages somebody else is reading are skipped
+                if(loading.putIfAbsent(pid, done) == null){
+                    claimed.put(pid, done);
+                    if(!shard.contains(pid)){
+                        seen.put(pid, removals);
+                        missing.add(pid);
+                    }
+                }
+            }
+            if(missing.isEmpty()){
+                return;
+            }
+            for(Page page:file.readPages(missing)){
+                installPrefetched(page, seen.get(page.getId()), ring);
+            }
+        }finally{
+            for(Map.Entry<PageId,CountDownLatch> e:claimed.entrySet()){
+                loading.remove(e.getKey(), e.getValue());
+                e.getValue().countDown();
+            }
+        }
+    }
 
+    private void installPrefetched(Page page, long seenRemovals, BufferRing ring) throws DbException {
+        BufferPoolShard shard = shardFor(page.getId());
+        reserveFrame(shard, ring);
+        if(shard.installPrefetched(page, seenRemovals, ring)){
+            if(ring != null){
+                ring.add(page.getId());
+            }
+        }else{
+            residentPages.decrementAndGet();
+        }
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Return a resident page, reading it from disk if it is not resident. A
+     * page is read by one thread at a time: a thread that misses on a page
+     * another thread (or read-ahead) is reading waits for it.
      *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @param prefetch true for read-ahead, which installs the page only if
+     *     it cannot be stale and does not count as a reference
+     * @param ring the ring to read the page into, or null for the shared pool
      */
-    public BufferPool(int numPages) {
-        this.numPages = numPages;
-        pageStore = new ConcurrentHashMap<>();
-
-        // transaction
-        pageAge = new ConcurrentHashMap<PageId,Integer>();
-        age = 0;
-        lockManager = new PageLockManager();
+    private Page loadPage(BufferPoolShard shard, PageId pid, boolean prefetch, BufferRing ring) throws DbException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        boolean reference = !prefetch && ring == null;
+        while(true){
+            long removals = shard.removals();
+            Page page = residentPage(shard, file, pid, reference);
+            if(page != null){
+                return page;
+            }
+            CountDownLatch done = new CountDownLatch(1);
+            CountDownLatch other = loading.putIfAbsent(pid, done);
+            if(other != null){
+                awaitLoad(other);
+                continue;
+            }
+            try{
+                // it may have been installed before we claimed it
+                page = residentPage(shard, file, pid, reference);
+                if(page != null){
+                    return page;
+                }
+                // read outside of the shard latch
+                page = file.readPage(pid);
+                reserveFrame(shard, ring);
+                if(!reference){
+                    boolean installed = prefetch
+                            ? shard.installPrefetched(page, removals, ring)
+                            : shard.installRing(page, ring);
+                    if(!installed){
+                        residentPages.decrementAndGet();
+                        Page resident = shard.get(pid);
+                        page = resident == null || prefetch ? page : resident;
+                    }else if(ring != null){
+                        ring.add(pid);
+                    }
+                }else if(arena != null){
+                    if(!shard.installFrame(pid, page.getPageData())){
+                        residentPages.decrementAndGet();
+                    }
+                }else{
+                    Page installed = shard.install(page);
+                    if(installed != page){
+                        // admitted by a writer meanwhile, give the frame back
+                        residentPages.decrementAndGet();
+                        page = installed;
+                    }
+                }
+                return page;
+            }finally{
+                loading.remove(pid, done);
+                done.countDown();
+            }
+        }
+    }
 
+    /**
+     * @return the resident page, decoded from its frame in off-heap mode, or
+     *     null if it is not resident
+     */
+    private Page residentPage(BufferPoolShard shard, DbFile file, PageId pid, boolean reference) {
+        Page page = shard.get(pid);
+        if(page == null && arena != null){
+            byte[] data = shard.readFrame(pid);
+            if(data != null){
+                page = file.decodePage(pid, data);
+            }
+        }
+        if(page != null && reference){
+            shard.touch(pid);
+        }
+        return page;
     }
-    
-    public static int getPageSize() {
-      return pageSize;
+
+    private static void awaitLoad(CountDownLatch latch) {
+        boolean interrupted = false;
+        while(true){
+            try{
+                latch.await();
+                break;
+            }catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
     }
-    
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPool.pageSize = pageSize;
@@ -207,6 +702,34 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but read it into the given ring if it is not resident. A hit on a page
+     * of the shared pool does not count as a reference to it.
+     *
+     * @param ring the ring of the calling scan or bulk operation, or null
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, ring, false);
+    }
+
+    /**
+     * Retrieve a page whose rows are locked one by one: in a record-locked
+     * table, the page only gets an intention lock, and the caller must lock
+     * the rows it uses and hold the page's monitor while it changes the page.
+     * In other tables this is the same as a plain getPage.
+     */
+    Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, ring, isRecordLocking(pid.getTableId()));
+    }
+
+    private Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring, boolean intention)
+        throws TransactionAbortedException, DbException {
 
 //        if(!pageStore.containsKey(pid.hashCode())){
 //            DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
@@ -248,56 +771,355 @@ public class BufferPool {
 //        }
 //        return pageStore.get(pid);
 
-        int lockType;
-        if(perm == Permissions.READ_ONLY){
-            lockType = 0;
-        }else{
-            lockType = 1;
-        }
-        boolean lockAcquired = false;
-        long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(2000) + 1000;
-        while(!lockAcquired){
-            long now = System.currentTimeMillis();
-            if(now-start > timeout){
-                // TransactionAbortedException means detect a deadlock
-                // after upper caller catch TransactionAbortedException
-                // will call transactionComplete to abort this transition
-                // give someone else a chance: abort the transaction
-                throw new TransactionAbortedException();
+        Long snapshot = snapshots.get(tid);
+        if(snapshot != null){
+            return snapshotPage(pid, perm, ring, snapshot);
+        }
+        OptimisticTransaction occ = optimistic.get(tid);
+        if(occ != null){
+            return optimisticPage(occ, pid, perm, ring);
+        }
+
+        // waits in the lock queues of the table and of pid; a
+        // TransactionAbortedException means tid was chosen to break a deadlock,
+        // and the caller will call transactionComplete to abort this transaction
+        lockPage(tid, pid, perm, intention);
+
+        BufferPoolShard shard = shardFor(pid);
+        Page page = shard.get(pid);
+        if(page != null){
+            if(ring == null){
+                shard.touch(pid);
+            }
+            return page;
+        }
+        page = loadPage(shard, pid, false, ring);
+        if(arena != null && perm == Permissions.READ_WRITE){
+            // off-heap mode: pages that may be written stay on the heap until
+            // their transaction completes
+            page = shard.pin(page);
+        }
+        return page;
+
+    }
+
+    /**
+     * @return the page as of snapshot ts; either an old version decoded for
+     *     this call or the cached before image of the resident page, which
+     *     other readers share, so it must not be modified
+     */
+    private Page snapshotPage(PageId pid, Permissions perm, BufferRing ring, long ts) throws DbException {
+        if(perm != Permissions.READ_ONLY){
+            throw new DbException("a transaction reading a snapshot cannot write " + pid);
+        }
+        BufferPoolShard shard = shardFor(pid);
+        Page page = shard.get(pid);
+        if(page == null){
+            page = loadPage(shard, pid, false, ring);
+        }else if(ring == null){
+            shard.touch(pid);
+        }
+        byte[] data;
+        synchronized (page) {
+            data = versions.read(pid, ts);
+            if(data == null){
+                data = versions.stolen(pid);
+            }
+            if(data == null){
+                return page.getBeforeImage();
+            }
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid, data);
+    }
+
+    /**
+     * @return the committed page for an optimistic transaction, or its
+     *     private copy of the page if it may write it
+     */
+    private Page optimisticPage(OptimisticTransaction occ, PageId pid, Permissions perm, BufferRing ring)
+            throws DbException {
+        Page own = occ.writes.get(pid);
+        if(own != null){
+            return own;
+        }
+        // the version is read before the contents: a commit changes the page
+        // before it counts the change, so the contents are at least as new
+        occ.reads.putIfAbsent(pid, pageWriteCounts.getOrDefault(pid, 0L));
+        BufferPoolShard shard = shardFor(pid);
+        Page page = shard.get(pid);
+        if(page == null){
+            page = loadPage(shard, pid, false, ring);
+        }else if(ring == null){
+            shard.touch(pid);
+        }
+        // not under the page's monitor, which a commit holds while it waits
+        // for the log: the before image has its own lock, and a page that
+        // holds stolen contents was read after they were remembered
+        byte[] data = versions.stolen(pid);
+        if(data == null){
+            if(perm == Permissions.READ_ONLY){
+                return page.getBeforeImage();
+            }
+            data = page.getBeforeImage().getPageData();
+        }
+        Page copy = Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid, data);
+        if(perm != Permissions.READ_ONLY){
+            occ.writes.put(pid, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the committed contents of a resident page; must be called
+     *     holding the page's monitor
+     */
+    private byte[] committedData(Page page) {
+        byte[] data = versions.stolen(page.getId());
+        return data != null ? data : page.getBeforeImage().getPageData();
+    }
+
+    /**
+     * Lock a page for tid under multi-granularity locking: an intention lock
+     * on the table, then a lock on the page itself. A table lock that already
+     * covers the access makes the page lock unnecessary.
+     * <p>
+     * 同一事务在一张表上持有的页锁超过阈值时，升级为一个表锁并释放这些页锁，
+     * 所以大表扫描占用的锁表空间和提交时释放锁的时间都是常数。
+     *
+     * @param intention lock the page in an intention mode, because its rows
+     *     are locked one by one
+     */
+    private void lockPage(TransactionId tid, PageId pid, Permissions perm, boolean intention)
+            throws TransactionAbortedException {
+        boolean write = perm != Permissions.READ_ONLY;
+        TableLockId table = new TableLockId(pid.getTableId());
+        LockMode tableMode = lockManager.heldMode(tid, table);
+        if(tableMode != null && tableMode.covers(write ? LockMode.EXCLUSIVE : LockMode.SHARED)){
+            if(write){
+                // no page lock will tell transactionComplete about this page
+                dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            }
+            return;
+        }
+        lockManager.acquire(tid, table, write ? LockMode.INTENTION_EXCLUSIVE : LockMode.INTENTION_SHARED);
+        LockMode pageMode = write ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        if(intention){
+            pageMode = write ? LockMode.INTENTION_EXCLUSIVE : LockMode.INTENTION_SHARED;
+        }
+        if(!lockManager.acquire(tid, pid, pageMode)){
+            return;
+        }
+        AtomicInteger count = pageLockCounts.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pid.getTableId(), k -> new AtomicInteger());
+        if(count.incrementAndGet() > lockEscalationThreshold){
+            escalate(tid, table);
+            count.set(0);
+        }
+    }
+
+    /**
+     * Replace the page and row locks tid holds on a table with one table
+     * lock: X if it wrote any of the pages, SIX if it only intends to write,
+     * else S.
+     */
+    private void escalate(TransactionId tid, TableLockId table) throws TransactionAbortedException {
+        List<PageId> pages = new ArrayList<>();
+        boolean wrote = false;
+        for(PageId pid:lockManager.lockedResources(tid,PageId.class)){
+            if(pid.getTableId() == table.getTableId()){
+                pages.add(pid);
+                wrote |= lockManager.heldMode(tid, pid).covers(LockMode.INTENTION_EXCLUSIVE);
+            }
+        }
+        LockMode target = wrote ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        lockManager.acquire(tid, table, target);
+        Set<PageId> dirtied = dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet());
+        for(PageId pid:pages){
+            if(lockManager.heldMode(tid, pid).covers(LockMode.INTENTION_EXCLUSIVE)){
+                dirtied.add(pid);
+            }
+            lockManager.release(tid, pid);
+        }
+        for(RecordId rid:lockManager.lockedResources(tid,RecordId.class)){
+            if(rid.getPageId().getTableId() == table.getTableId()){
+                lockManager.release(tid, rid);
             }
-            lockAcquired = lockManager.acquireLock(pid,tid,lockType);
         }
+    }
+
+    /**
+     * Lock a row of a record-locked table, waiting if necessary. The table
+     * and the page get intention locks first; a lock on either that already
+     * covers the row makes the row lock unnecessary.
+     */
+    void lockRecord(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        LockMode mode = perm == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE;
+        PageId pid = rid.getPageId();
+        lockPage(tid, pid, perm, true);
+        if(!coversRecord(tid, pid, mode)){
+            lockManager.acquire(tid, rid, mode);
+        }
+    }
+
+    /**
+     * Lock a row of a record-locked table exclusively, but only if nobody
+     * else holds a lock on it. The caller must already hold an intention
+     * lock on the page, see getPageForRecords.
+     *
+     * @return true if tid may change the row now
+     */
+    boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return coversRecord(tid, rid.getPageId(), LockMode.EXCLUSIVE)
+                || lockManager.tryAcquire(tid, rid, LockMode.EXCLUSIVE);
+    }
+
+    private boolean coversRecord(TransactionId tid, PageId pid, LockMode mode) {
+        LockMode tableMode = lockManager.heldMode(tid, new TableLockId(pid.getTableId()));
+        LockMode pageMode = lockManager.heldMode(tid, pid);
+        return (tableMode != null && tableMode.covers(mode)) || (pageMode != null && pageMode.covers(mode));
+    }
 
-        if(!pageStore.containsKey(pid)){
-            int tabId = pid.getTableId();
-            DbFile file = Database.getCatalog().getDatabaseFile(tabId);
-            Page page = file.readPage(pid);
+    /**
+     * Record a row change made to a record-locked page. Must be called while
+     * holding the page's monitor, right after the change.
+     */
+    void recordChanged(TransactionId tid, HeapPage page, Tuple t, boolean insert) {
+        recordChanges.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new RecordChange(t, insert));
+        recordWriters.computeIfAbsent(page.getId(), k -> ConcurrentHashMap.newKeySet()).add(tid);
+        page.markDirty(true, tid);
+    }
 
-            if(pageStore.size()==numPages){
-                evictPage();
+    /**
+     * Read the rows of a record-locked page for tid, holding a shared lock on
+     * each of them. Rows that other running transactions inserted or deleted
+     * are waited for, so only committed rows are returned.
+     */
+    List<Tuple> readRecords(TransactionId tid, HeapPage page) throws TransactionAbortedException, DbException {
+        List<Tuple> rows = snapshotRecords(tid, page);
+        while(true){
+            for(Tuple t:rows){
+                lockRecord(tid, t.getRecordId(), Permissions.READ_ONLY);
             }
-            pageStore.put(pid,page);
-            pageAge.put(pid,age++);
-            return page;
+            for(RecordChange c:otherChanges(tid, page.getId())){
+                lockRecord(tid, c.rid, Permissions.READ_ONLY);
+            }
+            List<Tuple> again = snapshotRecords(tid, page);
+            if(again.equals(rows) && otherChanges(tid, page.getId()).isEmpty()){
+                return rows;
+            }
+            rows = again;
         }
-        return pageStore.get(pid);
+    }
 
+    private List<Tuple> snapshotRecords(TransactionId tid, HeapPage page) {
+        List<Tuple> rows = new ArrayList<>();
+        synchronized (page) {
+            page.iterator().forEachRemaining(rows::add);
+        }
+        return rows;
     }
 
-    public synchronized void swapPageByNewValue(Page targetPage, Page newPage) {
+    /**
+     * @return the row changes that running transactions other than tid made
+     *     to a page
+     */
+    private List<RecordChange> otherChanges(TransactionId tid, PageId pid) {
+        List<RecordChange> result = new ArrayList<>();
+        Set<TransactionId> writers = recordWriters.get(pid);
+        if(writers == null){
+            return result;
+        }
+        for(TransactionId writer:writers){
+            List<RecordChange> changes = writer.equals(tid) ? null : recordChanges.get(writer);
+            if(changes == null){
+                continue;
+            }
+            synchronized (changes) {
+                for(RecordChange c:changes){
+                    if(c.getPageId().equals(pid)){
+                        result.add(c);
+                    }
+                }
+            }
+        }
+        return result;
+    }
 
-        // bug
-        for(Map.Entry<PageId,Page> entry: pageStore.entrySet()) {
-//            System.out.println("entry.getKey: " +entry.getKey() +" entry.getValue: "+ entry.getValue());
-//            System.out.println(entry.getValue().getPageData());
-//            System.out.println(newPage.getPageData());
-            if(entry.getValue().equals(targetPage)) {
+    /**
+     * A ring that is full hands the frame of its oldest page over instead of
+     * taking one from the shared pool.
+     */
+    private void reserveFrame(BufferPoolShard preferred, BufferRing ring) throws DbException {
+        if(ring != null){
+            PageId oldest = ring.recycle();
+            if(oldest != null && shardFor(oldest).releaseRingPage(oldest, ring)){
+                return;
+            }
+        }
+        reserveFrame(preferred);
+    }
 
-//                System.out.println("找到目标"+ newPage.getId() + "  要替换成的页：" + newPage);
-                pageStore.put(newPage.getId(), newPage);
+    /**
+     * Take one frame out of the global budget, evicting a page if the pool is
+     * full. The shard that needs the frame is asked first.
+     */
+    private void reserveFrame(BufferPoolShard preferred) throws DbException {
+        boolean waitedForCleaner = false;
+        while(true){
+            int used = residentPages.get();
+            if(used < numPages){
+                if(residentPages.compareAndSet(used, used + 1)){
+                    return;
+                }
+                continue;
+            }
+            try{
+                evictPage(preferred);
+            }catch(DbException e){
+                PageCleaner c = cleaner;
+                if(c == null || waitedForCleaner){
+                    throw e;
+                }
+                // every page is dirty: give the cleaner one round to catch up
+                waitedForCleaner = true;
+                c.wakeUp();
+                try{
+                    Thread.sleep(PageCleaner.TICK_MILLIS);
+                }catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
             }
         }
+    }
+
+    /**
+     * Put a page into the pool, replacing any resident copy of it.
+     */
+    private void admitPage(Page page) throws DbException {
+        BufferPoolShard shard = shardFor(page.getId());
+        if(shard.putIfResident(page)){
+            return;
+        }
+        reserveFrame(shard);
+        if(!shard.put(page)){
+            // another thread brought it in meanwhile
+            residentPages.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the resident page with the given id, or null; does not load
+     *     it or touch the replacement state
+     */
+    Page peekPage(PageId pid) {
+        return shardFor(pid).get(pid);
+    }
+
+    public void swapPageByNewValue(Page targetPage, Page newPage) {
+
+        shardFor(newPage.getId()).replace(targetPage, newPage);
 
 //        Page page = pageStore.get(pageId);
 //        if (page.getId().equals(pageId)) {
@@ -322,7 +1144,24 @@ public class BufferPool {
      */
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
 
-        lockManager.releaseLock(pid,tid);
+        OptimisticTransaction occ = optimistic.get(tid);
+        if(occ != null){
+            // nothing is locked, only an unchanged private copy is dropped;
+            // the page stays in the read set
+            Page own = occ.writes.get(pid);
+            if(own != null && own.isDirty() == null){
+                occ.writes.remove(pid);
+            }
+            return;
+        }
+
+        if(lockManager.release(tid,pid)){
+            Map<Integer,AtomicInteger> counts = pageLockCounts.get(tid);
+            AtomicInteger count = counts == null ? null : counts.get(pid.getTableId());
+            if(count != null){
+                count.decrementAndGet();
+            }
+        }
     }
 
     /**
@@ -335,42 +1174,298 @@ public class BufferPool {
 
     /** 如果指定事务在指定页面上有锁，则返回 true */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return lockManager.holdsLock(p,tid);
+        if(lockManager.holdsLock(tid,p)){
+            return true;
+        }
+        LockMode tableMode = lockManager.heldMode(tid, new TableLockId(p.getTableId()));
+        return tableMode != null && tableMode.covers(LockMode.SHARED);
     }
 
 
-    private synchronized void restorePages(TransactionId tid) {
+    /**
+     * Logically undo the row changes of an aborting transaction, newest first.
+     */
+    private void undoRecordChanges(TransactionId tid) {
+        List<RecordChange> changes = recordChanges.get(tid);
+        if(changes == null){
+            return;
+        }
+        List<RecordChange> undo;
+        synchronized (changes) {
+            undo = new ArrayList<>(changes);
+        }
+        Set<PageId> pids = new HashSet<>();
+        for(int i=undo.size()-1;i>=0;i--){
+            RecordChange c = undo.get(i);
+            // dirty pages are never evicted, so the page is still resident
+            Page page = shardFor(c.getPageId()).get(c.getPageId());
+            if(page == null){
+                continue;
+            }
+            synchronized (page) {
+                try {
+                    c.undo((HeapPage) page);
+                } catch (DbException e) {
+                    throw new RuntimeException("failed to undo a row change", e);
+                }
+            }
+            pids.add(c.getPageId());
+        }
+        for(PageId pid:pids){
+            Page page = shardFor(pid).get(pid);
+            synchronized (page) {
+                releaseRecordWriter(tid, page);
+            }
+        }
+    }
+
+    /**
+     * Forget that tid has uncommitted rows on a page; the page is clean once
+     * no running transaction has any. Must be called holding the page's monitor.
+     */
+    private void releaseRecordWriter(TransactionId tid, Page page) {
+        Set<TransactionId> writers = recordWriters.get(page.getId());
+        if(writers == null){
+            return;
+        }
+        writers.remove(tid);
+        if(writers.isEmpty()){
+            recordWriters.remove(page.getId());
+            page.markDirty(false, null);
+        }else{
+            page.markDirty(true, writers.iterator().next());
+        }
+    }
 
-        for (PageId pid : pageStore.keySet()) {
-            Page page = pageStore.get(pid);
+    private void restorePages(TransactionId tid) {
 
-            if (page.isDirty() == tid) {
+        for (PageId pid : touchedPages(tid)) {
+            BufferPoolShard shard = shardFor(pid);
+            Page page = shard.get(pid);
+            if (page != null && page.isDirty() == tid) {
                 int tabId = pid.getTableId();
                 DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
+                TransactionId committed = unwrittenPages.get(pid);
+                if (committed != null) {
+                    // the disk lacks a NO-FORCE commit, its before image has it
+                    Page restored = file.decodePage(pid, page.getBeforeImage().getPageData());
+                    restored.markDirty(true, committed);
+                    shard.replace(page, restored);
+                    continue;
+                }
                 Page pageFromDisk = file.readPage(pid);
 
-                pageStore.put(pid, pageFromDisk);
+                shard.replace(page, pageFromDisk);
             }
         }
     }
 
+    /**
+     * @return every page tid may have changed: the pages it holds a lock on
+     *     and the pages it put into the pool as dirty
+     */
+    private Set<PageId> touchedPages(TransactionId tid) {
+        Set<PageId> pids = new HashSet<>(lockManager.lockedResources(tid,PageId.class));
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        if(dirtied != null){
+            pids.addAll(dirtied);
+        }
+        return pids;
+    }
+
+
+    /**
+     * Validate an optimistic transaction that is about to commit, and put
+     * its private copies into the pool as its dirty pages, so that
+     * transactionComplete commits them like the pages of a locking
+     * transaction. Does nothing for other transactions.
+     * <p>
+     * 验证时对读过的页面加共享锁、对要写的页面加排他锁，并持有到提交结束：拿到锁之后
+     * 页面版本仍然没有变，读到的内容在提交时就仍是最新的，事务等价于在此刻执行。
+     *
+     * @throws TransactionAbortedException if another commit changed a page
+     *     tid read, or tid was chosen to break a deadlock; the caller must
+     *     then abort the transaction
+     */
+    public void prepareCommit(TransactionId tid) throws TransactionAbortedException, DbException {
+        OptimisticTransaction occ = optimistic.get(tid);
+        if(occ == null){
+            return;
+        }
+        List<Page> written = new ArrayList<>();
+        for(Page p:occ.writes.values()){
+            if(p.isDirty() != null){
+                written.add(p);
+                lockPage(tid, p.getId(), Permissions.READ_WRITE, false);
+            }
+        }
+        for(Map.Entry<PageId,Long> read:occ.reads.entrySet()){
+            lockPage(tid, read.getKey(), Permissions.READ_ONLY, false);
+            if(!read.getValue().equals(pageWriteCounts.getOrDefault(read.getKey(), 0L))){
+                throw new TransactionAbortedException();
+            }
+        }
+        endOptimistic(tid);
+        Set<PageId> dirtied = dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet());
+        for(Page p:written){
+            dirtied.add(p.getId());
+            admitPage(p);
+        }
+    }
 
     /**
      * 提交或中止给定的事务；释放与事务关联的所有锁
+     * <p>
+     * An optimistic transaction that was not validated by prepareCommit is
+     * validated first, and aborted with an IOException if that fails.
      */
     public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
-        if(commit){
-            flushPages(tid);
-        }else{
-            restorePages(tid);
+        transactionComplete(tid, commit, false);
+    }
+
+    /**
+     * Commit or abort the given transaction, as
+     * {@link #transactionComplete(TransactionId, boolean)}.
+     *
+     * @param logCommit whether to append the commit record of tid before its
+     *     locks are released, so that no transaction that saw its changes can
+     *     commit ahead of it; the record is not waited for
+     */
+    public void transactionComplete(TransactionId tid, boolean commit, boolean logCommit) throws IOException {
+        Long snapshot = snapshots.remove(tid);
+        if(snapshot != null){
+            // a snapshot reader holds no locks and changed nothing
+            versions.endSnapshot(snapshot);
+            return;
+        }
+        if(commit && isOptimistic(tid)){
+            try{
+                prepareCommit(tid);
+            }catch(TransactionAbortedException | DbException e){
+                transactionComplete(tid, false);
+                throw new IOException("transaction " + tid.getId() + " failed validation and was aborted", e);
+            }
+        }
+        // private copies of an aborting optimistic transaction are dropped
+        endOptimistic(tid);
+        PageVersionStore.Commit stamp = null;
+        try{
+            if(commit){
+                stamp = versions.startCommit();
+                Set<PageId> changed = changedPages(tid);
+                retireVersions(changed, stamp);
+                if(noForce){
+                    logPages(tid);
+                }else{
+                    flushPages(tid);
+                }
+                // the committed state is the new before image, including pages the
+                // page cleaner already wrote and marked clean; pages tid only read
+                // keep theirs
+                for(PageId pid:changed){
+                    Page page = shardFor(pid).get(pid);
+                    if(page != null){
+                        synchronized (page) {
+                            // pages with uncommitted rows got their before image in flushRecordPage
+                            if(!recordWriters.containsKey(pid)){
+                                page.setBeforeImage();
+                            }
+                        }
+                    }
+                }
+                for(PageId pid:touchedPages(tid)){
+                    versions.restored(pid);
+                }
+                for(PageId pid:changed){
+                    countWrite(pid);
+                }
+            }else{
+                undoRecordChanges(tid);
+                restorePages(tid);
+                for(PageId pid:touchedPages(tid)){
+                    versions.restored(pid);
+                }
+            }
+            recordChanges.remove(tid);
+
+            if(arena != null){
+                // must happen while the locks are still held, so that the next
+                // reader decodes the committed bytes
+                for(PageId pid:touchedPages(tid)){
+                    BufferPoolShard shard = shardFor(pid);
+                    Page page = shard.get(pid);
+                    if(page != null){
+                        shard.unpin(page);
+                    }
+                }
+            }
+        }finally{
+            if(stamp != null){
+                versions.finishCommit(stamp);
+            }
+        }
+
+        if(commit && logCommit){
+            Database.getLogFile().logCommit(tid, false);
         }
 
-        for(PageId pid:pageStore.keySet()){
-            if(holdsLock(tid,pid)) {
-                unsafeReleasePage(tid,pid);
+        dirtiedPages.remove(tid);
+        pageLockCounts.remove(tid);
+        lockManager.releaseAll(tid);
+
+    }
+
+    /**
+     * @return the pages tid may have changed: those it holds an exclusive
+     *     lock on or made dirty; must be called before they are flushed
+     */
+    private Set<PageId> changedPages(TransactionId tid) {
+        Set<PageId> changed = new HashSet<>();
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        for(PageId pid:touchedPages(tid)){
+            Page page = shardFor(pid).get(pid);
+            if(page == null){
+                // written by the page cleaner and evicted since
+                if(versions.stolen(pid) != null){
+                    changed.add(pid);
+                }
+                continue;
+            }
+            synchronized (page) {
+                Set<TransactionId> writers = recordWriters.get(pid);
+                LockMode mode = lockManager.heldMode(tid, pid);
+                if(page.isDirty() == tid || (dirtied != null && dirtied.contains(pid))
+                        || (writers != null && writers.contains(tid))
+                        || (mode != null && mode.covers(LockMode.EXCLUSIVE))){
+                    changed.add(pid);
+                }
             }
         }
+        return changed;
+    }
 
+    /**
+     * Keep the committed contents of the changed pages, for snapshots
+     * older than the commit. Must happen before anything of the commit
+     * becomes visible: the page on disk or its before image.
+     */
+    private void retireVersions(Set<PageId> changed, PageVersionStore.Commit stamp) {
+        if(!stamp.keepVersions){
+            return;
+        }
+        for(PageId pid:changed){
+            Page page = shardFor(pid).get(pid);
+            if(page == null){
+                byte[] committed = versions.stolen(pid);
+                if(committed != null){
+                    versions.retire(pid, committed, stamp);
+                }
+                continue;
+            }
+            synchronized (page) {
+                versions.retire(pid, committedData(page), stamp);
+            }
+        }
     }
 
     /**
@@ -381,8 +1476,22 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
 
+        insertTuple(tid, tableId, t, null);
+    }
+
+    /**
+     * Insert a tuple as part of a bulk operation, reading pages that are
+     * searched for free space into the given ring.
+     *
+     * @param ring the ring of the bulk operation, or null
+     */
+    public void insertTuple(TransactionId tid, int tableId, Tuple t, BufferRing ring)
+        throws DbException, IOException, TransactionAbortedException {
+
+        checkWritable(tid);
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
-        updateBufferPool((ArrayList<Page>) f.insertTuple(tid,t),tid);
+        List<Page> dirtied = ring == null ? f.insertTuple(tid,t) : f.insertTuple(tid,t,ring);
+        updateBufferPool((ArrayList<Page>) dirtied,tid);
     }
 
     /**
@@ -392,10 +1501,17 @@ public class BufferPool {
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
 
+        checkWritable(tid);
         DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         updateBufferPool((ArrayList<Page>) f.deleteTuple(tid,t),tid);
     }
 
+    private void checkWritable(TransactionId tid) throws DbException {
+        if(isSnapshot(tid)){
+            throw new DbException("transaction " + tid.getId() + " is read-only");
+        }
+    }
+
 
     private void updateBufferPool(ArrayList<Page> pagelist, TransactionId tid) throws DbException{
 //        for(Page p:pagelist){
@@ -407,109 +1523,331 @@ public class BufferPool {
 //            pageStore.put(p.getId().hashCode(),p);
 //        }
 
+        OptimisticTransaction occ = optimistic.get(tid);
+        if(occ != null){
+            // private copies stay out of the pool until the commit
+            for(Page p:pagelist){
+                p.markDirty(true,tid);
+                occ.writes.put(p.getId(), p);
+            }
+            return;
+        }
+        Set<PageId> dirtied = dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet());
         for(Page p:pagelist){
             p.markDirty(true,tid);
+            dirtied.add(p.getId());
             // update bufferpool
-            if(pageStore.size() > numPages) {
-                evictPage();
-            }
-            pageStore.put(p.getId(),p);
+            admitPage(p);
         }
     }
 
     /**
      * Flush all dirty pages to disk.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for(Page p:pageStore.values()){
-            flushPage(p.getId());
+    public void flushAllPages() throws IOException {
+        for(BufferPoolShard shard:shards){
+            for(Page p:shard.pages()){
+                flushPage(p, true);
+            }
         }
     }
 
 
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
 
-        pageStore.remove(pid);
+        unwrittenPages.remove(pid);
+        // the caller writes the page itself, so its next log record is a full image
+        Database.getLogFile().resetDeltaBase(pid);
+        if(shardFor(pid).remove(pid)){
+            residentPages.decrementAndGet();
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
 
-        Page p = pageStore.get(pid);
-        TransactionId tid = null;
-        // flush it if it is dirty
-        if((tid = p.isDirty())!= null){
-            Database.getLogFile().logWrite(tid,p.getBeforeImage(),p);
-            Database.getLogFile().force();
-            // write to disk
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-            p.markDirty(false,null);
+        Page p = shardFor(pid).get(pid);
+        if(p != null){
+            flushPage(p, true);
         }
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Flushes a resident page. Only the page itself is locked, so that the
+     * log can be written without holding any shard latch.
+     *
+     * @param running true if the page's transaction keeps running, so that
+     *     the page on disk will not be committed
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-
-        for (PageId pid : pageStore.keySet()) {
-            Page page = pageStore.get(pid);
-            if (page.isDirty() == tid) {
-                flushPage(pid);
+    private void flushPage(Page p, boolean running) throws IOException {
+        synchronized (p) {
+            TransactionId tid = null;
+            // flush it if it is dirty
+            if((tid = p.isDirty())!= null){
+                Page image = p;
+                long logged;
+                if(unwrittenPages.get(p.getId()) == tid){
+                    // committed and logged by a NO-FORCE commit, which may
+                    // not have waited for the log; the next writer may have
+                    // changed the page before marking it dirty, so what is
+                    // written is the committed before image
+                    image = p.getBeforeImage();
+                    logged = Database.getLogFile().getLastUpdate();
+                    Database.getLogFile().force();
+                }else{
+                    if(running){
+                        versions.stealing(p.getId(), committedData(p));
+                    }
+                    logged = Database.getLogFile().logWrite(tid,p.getBeforeImage(),p);
+                    Database.getLogFile().force();
+                }
+                // write to disk
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(image);
+                Database.getLogFile().pageWritten(p.getId(), logged);
+                // a page changed since the commit stays dirty for the next writer
+                if(image == p || Arrays.equals(p.getPageData(), image.getPageData())){
+                    p.markDirty(false,null);
+                    unwrittenPages.remove(p.getId());
+                }
             }
         }
     }
 
     /**
-     * 从缓冲池中丢弃一个页面。将页面刷新到磁盘以确保脏页面在磁盘上更新
+     * Write a dirty page that may be in use by its transaction, on behalf of
+     * the page cleaner. A snapshot of the page is logged and written, and the
+     * page is marked clean only if it did not change in the meantime. The
+     * page monitor is held until the snapshot is on disk, as in flushPage, so
+     * that a newer image written by a commit is never overwritten by it.
+     *
+     * @return true if the page was written
      */
-    private synchronized  void evictPage() throws DbException {
-//        PageId pid = new ArrayList<>(pageStore.keySet()).get(0);
-//        try{
-//            flushPage(pid);
-//        }catch(IOException e){
-//            e.printStackTrace();
-//        }
-//        discardPage(pid);
+    boolean writeBackPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        synchronized (p) {
+            TransactionId tid = p.isDirty();
+            // pages with uncommitted rows of several transactions are only
+            // written when one of them commits
+            if(tid == null || recordWriters.containsKey(pid)){
+                return false;
+            }
+            boolean committed = unwrittenPages.get(pid) == tid;
+            // the committed before image, for the reason given in flushPage
+            byte[] data = committed ? p.getBeforeImage().getPageData() : p.getPageData();
+            Page snapshot = file.decodePage(pid, data);
+            long logged;
+            if(committed){
+                // committed and logged already
+                logged = Database.getLogFile().getLastUpdate();
+            }else{
+                versions.stealing(pid, committedData(p));
+                logged = Database.getLogFile().logWrite(tid, p.getBeforeImage(), snapshot);
+            }
+            Database.getLogFile().force();
+            file.writePage(snapshot);
+            Database.getLogFile().pageWritten(pid, logged);
+            if(Arrays.equals(p.getPageData(), data)){
+                p.markDirty(false, null);
+                unwrittenPages.remove(pid, tid);
+            }
+        }
+        return true;
+    }
 
-        // transaction
+    /**
+     * Write the pages a fuzzy checkpoint found dirty, so that the next
+     * checkpoint need not redo their updates. The page cleaner writes them
+     * within its budget if it runs, otherwise they are written here one at
+     * a time, without stopping other transactions.
+     */
+    void writeCheckpointPages(Collection<PageId> pids) throws IOException {
+        PageCleaner c = cleaner;
+        if(c != null){
+            c.writeLater(pids);
+            return;
+        }
+        for(PageId pid : pids){
+            Page p = peekPage(pid);
+            if(p != null){
+                writeBackPage(p);
+            }
+        }
+    }
 
-        assert numPages == pageStore.size() : "Buffor Pool is not full, not need to evict page";
+    /**
+     * @return the resident pages that are currently dirty
+     */
+    List<Page> dirtyPages() {
+        List<Page> dirty = new ArrayList<>();
+        for(BufferPoolShard shard:shards){
+            for(Page p:shard.pages()){
+                if(p.isDirty() != null){
+                    dirty.add(p);
+                }
+            }
+        }
+        return dirty;
+    }
 
-        PageId pageId = null;
-        int oldestAge = -1;
+    int countDirtyPages() {
+        int count = 0;
+        for(BufferPoolShard shard:shards){
+            for(Page p:shard.pages()){
+                if(p.isDirty() != null){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
 
-        // find the oldest page to evict (which is not dirty)
-        for (PageId pid: pageAge.keySet()) {
-            Page page = pageStore.get(pid);
-            // skip dirty page
-            if (page.isDirty() != null) {
-                continue;
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+
+        for (PageId pid : touchedPages(tid)) {
+            Page page = shardFor(pid).get(pid);
+            if (page != null && recordWriters.containsKey(pid)) {
+                flushRecordPage(tid, (HeapPage) page);
+            } else if (page != null && page.isDirty() == tid) {
+                flushPage(page, false);
             }
+        }
+    }
 
-            if (pageId == null) {
-                pageId = pid;
-                oldestAge = pageAge.get(pid);
-                continue;
+    /**
+     * Log the pages tid changed for a NO-FORCE commit, without writing them.
+     * They stay dirty on behalf of the committed tid until eviction, a
+     * checkpoint or the page cleaner writes them; the commit record that
+     * follows forces the log.
+     */
+    private void logPages(TransactionId tid) throws IOException {
+
+        for (PageId pid : touchedPages(tid)) {
+            Page page = shardFor(pid).get(pid);
+            if (page != null && recordWriters.containsKey(pid)) {
+                // other transactions have rows on it, so it is written as before
+                flushRecordPage(tid, (HeapPage) page);
+            } else if (page != null) {
+                synchronized (page) {
+                    if (page.isDirty() == tid) {
+                        Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                        // flushPage writes the before image of such a page
+                        page.setBeforeImage();
+                        unwrittenPages.put(pid, tid);
+                    }
+                }
             }
+        }
+    }
 
-            if (pageAge.get(pid) < oldestAge) {
-                pageId = pid;
-                oldestAge = pageAge.get(pid);
+    /**
+     * Write the rows tid committed on a record-locked page. Other running
+     * transactions may have rows on the same page, so what is logged and
+     * written is a copy of the page with their changes undone.
+     */
+    private void flushRecordPage(TransactionId tid, HeapPage page) throws IOException {
+        PageId pid = page.getId();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        synchronized (page) {
+            Set<TransactionId> writers = recordWriters.get(pid);
+            if(writers == null || !writers.contains(tid)){
+                return;
+            }
+            HeapPage image = (HeapPage) file.decodePage(pid, page.getPageData());
+            List<RecordChange> others = otherChanges(tid, pid);
+            try {
+                for(int i=others.size()-1;i>=0;i--){
+                    others.get(i).undo(image);
+                }
+            } catch (DbException e) {
+                throw new IOException("failed to remove uncommitted rows from " + pid, e);
             }
+            long logged = Database.getLogFile().logWrite(tid, page.getBeforeImage(), image);
+            Database.getLogFile().force();
+            file.writePage(image);
+            Database.getLogFile().pageWritten(pid, logged);
+            page.setBeforeImage(image.getPageData());
+            releaseRecordWriter(tid, page);
         }
+    }
 
-        if (pageId == null) {
-            throw  new DbException("failed to evict page: all pages are either dirty");
+    private boolean stealFromOthers(BufferPoolShard preferred) throws DbException {
+        for (BufferPoolShard shard : shards) {
+            if (shard != preferred && stealFrom(shard)) {
+                return true;
+            }
         }
-        Page page = pageStore.get(pageId);
+        return false;
+    }
 
-        // evict page
-        pageStore.remove(pageId);
-        pageAge.remove(pageId);
+    /**
+     * Write out a dirty page of a running transaction, logging its before
+     * image first, and evict a page of the shard that is clean now.
+     *
+     * @return true if a page was evicted
+     */
+    private boolean stealFrom(BufferPoolShard shard) throws DbException {
+        for (Page page : shard.pages()) {
+            // pages with uncommitted rows of several transactions are only
+            // written when one of them commits
+            if (page.isDirty() == null || recordWriters.containsKey(page.getId())) {
+                continue;
+            }
+            try {
+                flushPage(page, true);
+            } catch (IOException e) {
+                throw new DbException("failed to write back " + page.getId() + ": " + e.getMessage());
+            }
+            if (shard.evictOne()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * 从缓冲池中丢弃一个页面。将页面刷新到磁盘以确保脏页面在磁盘上更新
+     * <p>
+     * The preferred shard is asked first, then the others in order.
+     */
+    private void evictPage(BufferPoolShard preferred) throws DbException {
+        if (preferred.evictOne()) {
+            residentPages.decrementAndGet();
+            return;
+        }
+        for (BufferPoolShard shard : shards) {
+            if (shard != preferred && shard.evictOne()) {
+                residentPages.decrementAndGet();
+                return;
+            }
+        }
+        // write back a page left dirty by a NO-FORCE commit, then evict it
+        for (Map.Entry<PageId,TransactionId> e : unwrittenPages.entrySet()) {
+            BufferPoolShard shard = shardFor(e.getKey());
+            Page page = shard.get(e.getKey());
+            if (page == null || page.isDirty() != e.getValue()) {
+                continue;
+            }
+            try {
+                flushPage(page, true);
+            } catch (IOException ex) {
+                throw new DbException("failed to write back " + e.getKey() + ": " + ex.getMessage());
+            }
+            if (shard.evictOne()) {
+                residentPages.decrementAndGet();
+                return;
+            }
+        }
+        if (steal && (stealFrom(preferred) || stealFromOthers(preferred))) {
+            residentPages.decrementAndGet();
+            return;
+        }
+        throw  new DbException("failed to evict page: all pages are either dirty");
     }
 
 }
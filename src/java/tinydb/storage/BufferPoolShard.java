@@ -0,0 +1,311 @@
+package tinydb.storage;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One partition of the BufferPool.
+ * <p>
+ * 每个分片拥有自己的页表和置换策略状态，并以分片对象本身作为锁存器（latch），
+ * 所以落在不同分片上的页面未命中不会互相阻塞。Lookups go through the concurrent
+ * page table without taking the latch; the latch only guards changes to the
+ * page table and the replacement state.
+ * <p>
+ * The capacity budget is global and owned by the BufferPool: a shard never
+ * decides on its own whether the pool is full.
+ * <p>
+ * When the shard has a {@link PageFrameArena}, every resident page owns an
+ * off-heap frame holding its bytes, and the page table only keeps the Page
+ * objects that are pinned on the heap, i.e. pages that may be written by a
+ * running transaction. Other pages are decoded from their frame on access.
+ */
+class BufferPoolShard {
+
+    private final ConcurrentHashMap<PageId,Page> pages = new ConcurrentHashMap<>();
+    private final ReplacementPolicy policy;
+
+    // only used in off-heap mode
+    private final PageFrameArena arena;
+    private final ConcurrentHashMap<PageId,Integer> frames = new ConcurrentHashMap<>();
+
+    // number of pages that left this shard, see installPrefetched
+    private volatile long removals;
+    // pages that belong to a BufferRing rather than to the shared pool
+    private final ConcurrentHashMap<PageId,BufferRing> ringOwners = new ConcurrentHashMap<>();
+
+    BufferPoolShard(ReplacementPolicy policy) {
+        this(policy, null);
+    }
+
+    BufferPoolShard(ReplacementPolicy policy, PageFrameArena arena) {
+        this.policy = policy;
+        this.arena = arena;
+    }
+
+    /**
+     * @return the Page object of a resident page, or null if it is not
+     *     resident or, in off-heap mode, not pinned on the heap
+     */
+    Page get(PageId pid) {
+        return pages.get(pid);
+    }
+
+    boolean contains(PageId pid) {
+        return arena == null ? pages.containsKey(pid) : frames.containsKey(pid);
+    }
+
+    /**
+     * @return the Page objects of this shard; in off-heap mode only the pinned ones
+     */
+    Collection<Page> pages() {
+        return pages.values();
+    }
+
+    /**
+     * @return the ids of all resident pages, pinned or not
+     */
+    Collection<PageId> residentIds() {
+        return arena == null ? pages.keySet() : frames.keySet();
+    }
+
+    int size() {
+        return arena == null ? pages.size() : frames.size();
+    }
+
+    /**
+     * Record a hit on a resident page.
+     */
+    synchronized void touch(PageId pid) {
+        if (contains(pid)) {
+            // a ring page used through the shared pool joins it
+            ringOwners.remove(pid);
+            policy.recordAccess(pid);
+        }
+    }
+
+    /**
+     * Install a page for which the caller has already reserved a frame.
+     *
+     * @return the page now resident under page.getId(); if another thread
+     *     installed the same page first, that page is returned and the caller
+     *     must give its reservation back
+     */
+    synchronized Page install(Page page) {
+        PageId pid = page.getId();
+        Page resident = pages.putIfAbsent(pid, page);
+        policy.recordAccess(pid);
+        return resident == null ? page : resident;
+    }
+
+    /**
+     * Off-heap mode: store the bytes of a page for which the caller has
+     * already reserved a frame.
+     *
+     * @return false if another thread stored the page first, in which case
+     *     the caller must give its reservation back
+     */
+    synchronized boolean installFrame(PageId pid, byte[] data) {
+        policy.recordAccess(pid);
+        if (frames.containsKey(pid)) {
+            return false;
+        }
+        int frame = arena.allocate();
+        arena.write(frame, data);
+        frames.put(pid, frame);
+        return true;
+    }
+
+    /**
+     * @return a counter that changes whenever a page leaves this shard
+     */
+    long removals() {
+        return removals;
+    }
+
+    /**
+     * Install a page read by read-ahead, for which the caller has already
+     * reserved a frame. The page was read from disk without a lock, so it may
+     * be stale if the page was resident at any time since {@code seenRemovals}
+     * was taken: it could have been changed, written and evicted meanwhile.
+     * Such a page is not installed.
+     *
+     * @return false if the page was not installed, in which case the caller
+     *     must give its reservation back
+     */
+    synchronized boolean installPrefetched(Page page, long seenRemovals, BufferRing ring) {
+        if (removals != seenRemovals) {
+            return false;
+        }
+        return installRing(page, ring);
+    }
+
+    /**
+     * Install a page for which the caller has already reserved a frame,
+     * without counting a reference to it.
+     *
+     * @param ring the ring the page belongs to, or null for the shared pool
+     * @return false if the page is already resident, in which case the
+     *     caller must give its reservation back
+     */
+    synchronized boolean installRing(Page page, BufferRing ring) {
+        PageId pid = page.getId();
+        if (contains(pid)) {
+            return false;
+        }
+        if (arena == null) {
+            pages.put(pid, page);
+        } else {
+            int frame = arena.allocate();
+            arena.write(frame, page.getPageData());
+            frames.put(pid, frame);
+        }
+        if (ring != null) {
+            ringOwners.put(pid, ring);
+        }
+        policy.recordPrefetch(pid);
+        return true;
+    }
+
+    /**
+     * Evict a page on behalf of the ring that owns it, so that the ring can
+     * reuse its frame.
+     *
+     * @return false if the page is no longer resident, is dirty, or was
+     *     taken over by the shared pool
+     */
+    synchronized boolean releaseRingPage(PageId pid, BufferRing ring) {
+        if (ringOwners.get(pid) != ring) {
+            return false;
+        }
+        Page page = pages.get(pid);
+        if (page != null && page.isDirty() != null) {
+            return false;
+        }
+        policy.remove(pid);
+        return drop(pid);
+    }
+
+    /**
+     * Off-heap mode: copy the bytes of a resident page out of its frame.
+     *
+     * @return the bytes, or null if the page is not resident
+     */
+    synchronized byte[] readFrame(PageId pid) {
+        Integer frame = frames.get(pid);
+        return frame == null ? null : arena.read(frame);
+    }
+
+    /**
+     * Off-heap mode: keep the Page object of a resident page on the heap so
+     * that changes made to it are not lost.
+     *
+     * @return the pinned object, which is an earlier one if it was already pinned
+     */
+    synchronized Page pin(Page page) {
+        Page pinned = pages.putIfAbsent(page.getId(), page);
+        return pinned == null ? page : pinned;
+    }
+
+    /**
+     * Off-heap mode: write a clean pinned page back into its frame and drop
+     * the heap object. Dirty pages stay pinned.
+     */
+    synchronized void unpin(Page page) {
+        PageId pid = page.getId();
+        Integer frame = frames.get(pid);
+        if (frame == null || page.isDirty() != null || !pages.remove(pid, page)) {
+            return;
+        }
+        arena.write(frame, page.getPageData());
+    }
+
+    /**
+     * Replace the resident copy of a page, whether or not it was present.
+     *
+     * @return true if the page was not resident before, i.e. a new frame is used
+     */
+    synchronized boolean put(Page page) {
+        PageId pid = page.getId();
+        ringOwners.remove(pid);
+        boolean added;
+        if (arena == null) {
+            added = pages.put(pid, page) == null;
+        } else {
+            added = !frames.containsKey(pid);
+            if (added) {
+                int frame = arena.allocate();
+                arena.write(frame, page.getPageData());
+                frames.put(pid, frame);
+            }
+            pages.put(pid, page);
+        }
+        policy.recordAccess(pid);
+        return added;
+    }
+
+    /**
+     * Put the page in place of its resident copy, if there is one. Checked
+     * under the shard latch, so that no eviction frees the frame in between.
+     *
+     * @return true if a resident copy was replaced
+     */
+    synchronized boolean putIfResident(Page page) {
+        if (!contains(page.getId())) {
+            return false;
+        }
+        put(page);
+        return true;
+    }
+
+    /**
+     * Replace the resident copy of a page if it is still {@code expected}.
+     */
+    synchronized boolean replace(Page expected, Page page) {
+        PageId pid = page.getId();
+        if (!pages.replace(pid, expected, page)) {
+            return false;
+        }
+        policy.recordAccess(pid);
+        return true;
+    }
+
+    /**
+     * @return true if the page was resident
+     */
+    synchronized boolean remove(PageId pid) {
+        policy.remove(pid);
+        return drop(pid);
+    }
+
+    /**
+     * Evict one clean page chosen by the replacement policy.
+     *
+     * @return true if a page was evicted
+     */
+    synchronized boolean evictOne() {
+        // the policy skips dirty pages (NO STEAL)
+        PageId victim = policy.victim(pid -> {
+            Page page = pages.get(pid);
+            return page == null || page.isDirty() == null;
+        });
+        if (victim == null) {
+            return false;
+        }
+        drop(victim);
+        return true;
+    }
+
+    private boolean drop(PageId pid) {
+        removals++;
+        ringOwners.remove(pid);
+        boolean resident = pages.remove(pid) != null;
+        if (arena != null) {
+            Integer frame = frames.remove(pid);
+            resident = frame != null;
+            if (resident) {
+                arena.free(frame);
+            }
+        }
+        return resident;
+    }
+}
@@ -0,0 +1,69 @@
+package tinydb.storage;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small private set of frames for a large scan or a bulk operation.
+ * <p>
+ * 通过 {@link BufferPool#getPage(tinydb.transaction.TransactionId, PageId, tinydb.common.Permissions, BufferRing)}
+ * 读入的页面不进入共享的置换策略，而是在环内循环使用固定数量的帧：环满时，最早读入的页面
+ * 让出它的帧。所以一次比缓冲池还大的扫描最多只占用环大小的帧，不会冲掉其他事务的热点页面。
+ * <p>
+ * A ring page leaves the ring when another transaction uses it through the
+ * shared pool or when it is dirtied; the ring then takes a fresh frame.
+ * Rings are created with {@link BufferPool#newBufferRing()} and are safe to
+ * share with the read-ahead of their own scan.
+ */
+public class BufferRing {
+
+    /** Smallest number of frames in a ring. */
+    public static final int DEFAULT_RING_PAGES = 16;
+
+    private final int capacity;
+    // pages read through this ring, oldest first
+    private final ArrayDeque<PageId> members = new ArrayDeque<>();
+    // first page a bulk insert through this ring has not found full, per table
+    private Integer insertTable;
+    private int insertHint;
+
+    BufferRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("a buffer ring needs at least one frame");
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the oldest member, which gives up its frame, if the ring is
+     *     full; null otherwise
+     */
+    synchronized PageId recycle() {
+        return members.size() >= capacity ? members.poll() : null;
+    }
+
+    synchronized void add(PageId pid) {
+        members.add(pid);
+    }
+
+    synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * Bulk inserts through a ring skip the pages they already found full.
+     *
+     * @return the page number to start looking for free space at
+     */
+    public synchronized int getInsertHint(int tableId) {
+        return insertTable != null && insertTable == tableId ? insertHint : 0;
+    }
+
+    public synchronized void setInsertHint(int tableId, int pageNumber) {
+        insertTable = tableId;
+        insertHint = pageNumber;
+    }
+}
@@ -0,0 +1,86 @@
+package tinydb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement.
+ * <p>
+ * 每个常驻页面占用环上的一个槽位并带有一个引用位。时钟指针扫过环时，
+ * 引用位为 1 的页面被清零并获得第二次机会，第一个引用位为 0 且可淘汰的页面被选中。
+ * Each page is visited at most twice per sweep, so victim selection is
+ * O(1) amortized.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> slots = new ArrayList<>();
+    private final ArrayList<Boolean> referenced = new ArrayList<>();
+    private final Map<PageId,Integer> slotOf = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand = 0;
+
+    @Override
+    public void recordAccess(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced.set(slot, true);
+            return;
+        }
+
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(pid);
+            referenced.add(true);
+        } else {
+            slot = freeSlots.pop();
+            slots.set(slot, pid);
+            referenced.set(slot, true);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots.set(slot, null);
+            referenced.set(slot, false);
+            freeSlots.push(slot);
+        }
+    }
+
+    @Override
+    public PageId victim(Predicate<PageId> evictable) {
+        int n = slots.size();
+        // two full turns: the first clears reference bits, the second finds
+        // an unreferenced page if there is any evictable one
+        for (int step = 0; step < 2 * n; step++) {
+            if (hand >= n) {
+                hand = 0;
+            }
+            int slot = hand++;
+            PageId pid = slots.get(slot);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(slot)) {
+                referenced.set(slot, false);
+                continue;
+            }
+            if (evictable.test(pid)) {
+                remove(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return slotOf.size();
+    }
+}
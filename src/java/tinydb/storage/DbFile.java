@@ -22,6 +22,20 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read several pages from disk, for read-ahead. Files that can read a run
+     * of consecutive pages in one request should override this.
+     *
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> pages = new ArrayList<>(ids.size());
+        for (PageId id : ids) {
+            pages.add(readPage(id));
+        }
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -30,12 +44,31 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Build a page of this file from bytes previously produced by
+     * {@link Page#getPageData()}, without touching the disk.
+     *
+     * @throws IllegalArgumentException if the bytes do not form a valid page
+     */
+    default Page decodePage(PageId id, byte[] data) {
+        throw new UnsupportedOperationException("decodePage is not supported by " + getClass().getName());
+    }
+
     /**
      * 代表事务将指定的元组插入文件。此方法将在文件的受影响页面上获取锁，并且可能会阻塞，直到可以获取锁
      */
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Insert a tuple as part of a bulk operation that reads pages through
+     * the given ring, see {@link BufferRing}.
+     */
+    default List<Page> insertTuple(TransactionId tid, Tuple t, BufferRing ring)
+        throws DbException, IOException, TransactionAbortedException {
+        return insertTuple(tid, t);
+    }
+
     /**
      * 代表指定的事务从文件中删除指定的元组
      * 此方法将在文件的受影响页面上获取锁，并且可能会阻塞，直到可以获取锁。
@@ -46,6 +79,14 @@ public interface DbFile {
 
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Iterate over the file reading pages through the given ring, for large
+     * scans. Files that do not support rings fall back to the shared pool.
+     */
+    default DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return iterator(tid);
+    }
+
     int getId();
     
     /**
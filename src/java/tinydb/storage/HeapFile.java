@@ -58,8 +58,7 @@ public class HeapFile implements DbFile {
             if(read != BufferPool.getPageSize()){
                 throw new IllegalArgumentException(String.format("table %d page %d read %d bytes", tableId, pgNo, read));
             }
-            HeapPageId id = new HeapPageId(pid.getTableId(),pid.getPageNumber());
-            return new HeapPage(id,bytes);
+            return decodePage(pid,bytes);
         }catch (IOException e){
             e.printStackTrace();
         }finally {
@@ -73,6 +72,51 @@ public class HeapFile implements DbFile {
    }
 
 
+    /**
+     * Each run of consecutive pages is read with a single request.
+     */
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        int pgSize = BufferPool.getPageSize();
+        List<Page> pages = new ArrayList<>(pids.size());
+        try(RandomAccessFile f = new RandomAccessFile(file,"r")){
+            int start = 0;
+            while(start < pids.size()){
+                int first = pids.get(start).getPageNumber();
+                int end = start + 1;
+                while(end < pids.size() && pids.get(end).getPageNumber() == first + end - start){
+                    end++;
+                }
+                int count = end - start;
+                if((long)(first + count) * pgSize > f.length()){
+                    throw new IllegalArgumentException(String.format("table %d pages %d-%d are invalid", getId(), first, first + count - 1));
+                }
+                byte[] bytes = new byte[count * pgSize];
+                f.seek((long)first * pgSize);
+                f.readFully(bytes);
+                for(int i=0;i<count;++i){
+                    pages.add(decodePage(pids.get(start + i),Arrays.copyOfRange(bytes,i*pgSize,(i+1)*pgSize)));
+                }
+                start = end;
+            }
+        }catch (IOException e){
+            throw new IllegalArgumentException(String.format("table %d pages could not be read", getId()), e);
+        }
+        return pages;
+    }
+
+
+    @Override
+    public Page decodePage(PageId pid, byte[] data) {
+        try{
+            HeapPageId id = new HeapPageId(pid.getTableId(),pid.getPageNumber());
+            return new HeapPage(id,data);
+        }catch (IOException e){
+            throw new IllegalArgumentException(String.format("table %d page %d is invalid", pid.getTableId(), pid.getPageNumber()), e);
+        }
+    }
+
+
     @Override
     public void writePage(Page page) throws IOException {
 
@@ -103,6 +147,12 @@ public class HeapFile implements DbFile {
     @Override
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        return insertTuple(tid, t, null);
+    }
+
+    @Override
+    public List<Page> insertTuple(TransactionId tid, Tuple t, BufferRing ring)
+            throws DbException, IOException, TransactionAbortedException {
 //        ArrayList<Page> pageList= new ArrayList<Page>();
 //        for(int i=0;i<numPages();++i){
 //            // took care of getting new page
@@ -128,13 +178,22 @@ public class HeapFile implements DbFile {
 //        return pageList;
 
 
+        BufferPool pool = Database.getBufferPool();
+        if(pool.locksRecords(tid,getId())){
+            return insertRecord(pool, tid, t, ring);
+        }
+
         HeapPage page  = null;
 
         // find a non full page
-        for(int i=0;i<numPages();++i){
+        int first = ring == null ? 0 : ring.getInsertHint(getId());
+        for(int i=first;i<numPages();++i){
             HeapPageId pid = new HeapPageId(getId(),i);
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE,ring);
             if(page.getNumEmptySlots()!=0){
+                if(ring != null){
+                    ring.setInsertHint(getId(),i);
+                }
                 break;
             } else{
                 Database.getBufferPool().unsafeReleasePage(tid,pid);
@@ -148,6 +207,9 @@ public class HeapFile implements DbFile {
             HeapPage heapPage = new HeapPage(pid,data);
             writePage(heapPage);
             page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+            if(ring != null){
+                ring.setInsertHint(getId(),pid.getPageNumber());
+            }
         }
 
         page.insertTuple(t);
@@ -157,6 +219,41 @@ public class HeapFile implements DbFile {
         return res;
     }
 
+    /**
+     * Insert a tuple into a record-locked table: the page only gets an
+     * intention lock, and the tuple goes into a free slot nobody else holds
+     * a lock on, e.g. the slot of a row deleted by a running transaction.
+     */
+    private List<Page> insertRecord(BufferPool pool, TransactionId tid, Tuple t, BufferRing ring)
+            throws DbException, IOException, TransactionAbortedException {
+        int first = ring == null ? 0 : ring.getInsertHint(getId());
+        for(int i=first;;++i){
+            HeapPageId pid = new HeapPageId(getId(),i);
+            if(i >= numPages()){
+                synchronized (this) {
+                    if(i >= numPages()){
+                        writePage(new HeapPage(pid,HeapPage.createEmptyPageData()));
+                    }
+                }
+            }
+            HeapPage page = (HeapPage) pool.getPageForRecords(tid,pid,Permissions.READ_WRITE,ring);
+            synchronized (page) {
+                for(int slot=0;slot<page.getNumSlots();++slot){
+                    if(!page.isSlotUsed(slot) && pool.tryLockRecord(tid,new RecordId(pid,slot))){
+                        page.insertTuple(t,slot);
+                        pool.recordChanged(tid,page,t,true);
+                        if(ring != null){
+                            ring.setInsertHint(getId(),i);
+                        }
+                        ArrayList<Page> res = new ArrayList<>();
+                        res.add(page);
+                        return res;
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -172,9 +269,21 @@ public class HeapFile implements DbFile {
         RecordId rid = t.getRecordId();
         PageId pid = rid.getPageId();
 
-        // delete tuple and mark page as dirty
-        HeapPage page =  (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page;
+        if(pool.locksRecords(tid,getId())){
+            // only the row is locked exclusively, the page is latched
+            page = (HeapPage) pool.getPageForRecords(tid,pid,Permissions.READ_WRITE,null);
+            pool.lockRecord(tid,rid,Permissions.READ_WRITE);
+            synchronized (page) {
+                page.deleteTuple(t);
+                pool.recordChanged(tid,page,t,false);
+            }
+        }else{
+            // delete tuple and mark page as dirty
+            page = (HeapPage) pool.getPage(tid,pid,Permissions.READ_WRITE);
+            page.deleteTuple(t);
+        }
 
         // return res
         ArrayList<Page> res = new ArrayList<>();
@@ -186,31 +295,48 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     @Override
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this,tid);
+        return new HeapFileIterator(this,tid,null);
+    }
+
+    @Override
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(this,tid,ring);
     }
 
 
     private static final class HeapFileIterator implements DbFileIterator{
         private final HeapFile heapFile;
         private final TransactionId tid;
+        private final BufferRing ring;
         private Iterator<Tuple> it;
         private int whichPage;
+        private final ReadAhead readAhead;
 
-        public HeapFileIterator(HeapFile file,TransactionId tid){
+        public HeapFileIterator(HeapFile file,TransactionId tid,BufferRing ring){
             this.heapFile = file;
             this.tid = tid;
+            this.ring = ring;
+            this.readAhead = new ReadAhead(n -> new HeapPageId(file.getId(), n), ring);
         }
         @Override
         public void open() throws DbException, TransactionAbortedException {
             // TODO Auto-generated method stub
             whichPage = 0;
+            readAhead.reset();
             it = getPageTuples(whichPage);
         }
 
         private Iterator<Tuple> getPageTuples(int pageNumber) throws TransactionAbortedException, DbException{
-            if(pageNumber >= 0 && pageNumber < heapFile.numPages()){
+            int numPages = heapFile.numPages();
+            if(pageNumber >= 0 && pageNumber < numPages){
+                readAhead.access(pageNumber, numPages);
                 HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
-                HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                BufferPool pool = Database.getBufferPool();
+                if(pool.locksRecords(tid, heapFile.getId())){
+                    HeapPage page = (HeapPage) pool.getPageForRecords(tid, pid, Permissions.READ_ONLY, ring);
+                    return pool.readRecords(tid, page).iterator();
+                }
+                HeapPage page = (HeapPage)pool.getPage(tid, pid, Permissions.READ_ONLY, ring);
                 return page.iterator();
             }else{
                 throw new DbException(String.format("heapfile %d does not contain page %d!", pageNumber,heapFile.getId()));
@@ -23,7 +23,9 @@ public class HeapPage implements Page {
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+    // oldData decoded, shared by the callers of getBeforeImage; guarded by oldDataLock
+    private HeapPage beforeImage;
 
     // 将页面更改为脏的事务 ID
     private TransactionId dirtyId;
@@ -77,16 +79,29 @@ public class HeapPage implements Page {
                  
     }
     
-    /** Return a view of this page before it was modified */
+    /**
+     * Return a view of this page before it was modified. The view is shared
+     * until the before image changes, so it must not be modified.
+     */
     @Override
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                if(beforeImage != null){
+                    return beforeImage;
+                }
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            HeapPage image = new HeapPage(pid,oldDataRef);
+            synchronized(oldDataLock)
+            {
+                if(oldData == oldDataRef){
+                    beforeImage = image;
+                }
+            }
+            return image;
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -99,6 +114,19 @@ public class HeapPage implements Page {
         synchronized(oldDataLock)
         {
         oldData = getPageData().clone();
+        beforeImage = null;
+        }
+    }
+
+    /**
+     * Use the given bytes as the before image, e.g. the committed contents
+     * written out while other transactions still have rows on this page.
+     */
+    void setBeforeImage(byte[] image) {
+        synchronized(oldDataLock)
+        {
+        oldData = image.clone();
+        beforeImage = null;
         }
     }
 
@@ -220,8 +248,13 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
+        deleteTuple(t.getRecordId().getTupleNumber());
+    }
 
-        int tid = t.getRecordId().getTupleNumber();
+    /**
+     * Delete the tuple in the given slot from the page.
+     */
+    void deleteTuple(int tid) throws DbException {
         if(tuples[tid] == null){
             throw new DbException("tuple does not exist");
         }
@@ -249,20 +282,42 @@ public class HeapPage implements Page {
         }
         for(int i=0;i<numSlots;++i){
             if(!isSlotUsed(i)){
-                markSlotUsed(i,true);
-                t.setRecordId(new RecordId(pid,i));
-                tuples[i] = t;
+                insertTuple(t,i);
                 break;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the page in the given slot.
+     * @param t The tuple to add.
+     * @param slot an empty slot of this page
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if(slot < 0 || slot >= numSlots || isSlotUsed(slot)){
+            throw new DbException("slot " + slot + " is not an empty slot");
+        }
+        if(!t.getTupleDesc().equals(td)){
+            throw new DbException("tuple descriptor does not match");
+        }
+        markSlotUsed(slot,true);
+        t.setRecordId(new RecordId(pid,slot));
+        tuples[slot] = t;
+    }
+
+    /**
+     * @return the number of slots on this page, used or not
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
     @Override
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
 
         this.dirty  = dirty;
         this.dirtyId = tid;
@@ -273,7 +328,7 @@ public class HeapPage implements Page {
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     @Override
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         return this.dirty ? this.dirtyId:null;
     }
 
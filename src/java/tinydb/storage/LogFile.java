@@ -1,15 +1,16 @@
 
 package tinydb.storage;
 
-import com.sun.deploy.util.UpdateCheck;
 import tinydb.common.Database;
 import tinydb.common.DbException;
-import tinydb.common.Permissions;
 import tinydb.transaction.TransactionAbortedException;
 import tinydb.transaction.TransactionId;
 import tinydb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -29,23 +30,38 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
+<li>UPDATE RECORDS consist of the offset of the previous UPDATE or DELTA
+record of the same transaction (-1 if there is none), a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS are updates that contain the offset of the previous
+update of the same transaction like UPDATE records, and then only the byte
+ranges of the page that changed since the previous update of the same page,
+see {@link PageDelta}.  The first update of a page after it was written or
+replaced without a log record is a full UPDATE record.  A checkpoint keeps
+the deltas going: recovery redoes from the first update of every page not on
+disk at the checkpoint, so the base of a delta is on disk or redone first.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction, followed by the long integer offset recovery
+redoes updates from: the first update record of any page that was not on
+disk yet when the checkpoint was taken.
 
 </ul>
+
+<p> Records are appended to a tail of the log in memory, which is written
+to the file with one positional write when it fills, when a transaction
+commits or aborts, and before the log is read or forced.
 */
 public class LogFile {
 
@@ -58,16 +74,78 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_UPDATE_RECORD = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default time a group flush waits for more commits to join it, in microseconds */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+    /** Default number of waiting threads that starts a group flush before its window ends */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 16;
+    /** Default longest time an asynchronous commit stays off disk, in ms */
+    public static final long DEFAULT_ASYNC_COMMIT_DELAY_MILLIS = 200;
+    // pages whose last logged image is kept for delta records
+    private static final int MAX_DELTA_BASES = 1024;
+    // size of the unwritten tail of the log at which it is written to the file
+    private static final int LOG_TAIL_SIZE = 64 * 1024;
+    // time after which an idle flusher thread exits, in ms
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
     long currentOffset = -1;//protected by this
+    // end of the part of the log written to the file, the records after it
+    // are in tail; protected by this
+    private long writtenOffset = 0;
+    private final LogTail tailBytes = new LogTail();
+    private final DataOutputStream tail = new DataOutputStream(tailBytes);
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // offset of the last update record of each live transaction that logged
+    // one; the others have nothing to roll back
+    final Map<Long,Long> tidToLastUpdate = new HashMap<>();
+    // after image of the last update logged for each page, which the next
+    // update of the page is a delta to; dropped when the page changes without
+    // a log record, and pages without one get a full image
+    private final Map<PageId,byte[]> deltaBases = new LinkedHashMap<PageId,byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageId,byte[]> eldest) {
+            return size() > MAX_DELTA_BASES;
+        }
+    };
+
+    // dirty page table: for each page whose logged updates may not all be on
+    // disk, the offset of the first such update record and the number of the
+    // last one, see pageWritten
+    private final Map<PageId,long[]> dirtyPages = new HashMap<>();
+    // number of the last update record logged, counted across truncations
+    private long lastUpdate = 0;
+
+    // guards the flush state below; never held while taking the monitor of this
+    private final Object flushLock = new Object();
+    // incremented when truncation rewrites the log, which voids older offsets;
+    // changed holding both this and flushLock
+    private long generation = 0;
+    // end of the part of the log known to be on disk
+    private long flushedOffset = 0;
+    // largest offset a waiting thread needs on disk
+    private long requestedOffset = 0;
+    private int waiters = 0;
+    // largest offset appended by an asynchronous commit, and when it must be on disk
+    private long asyncOffset = 0;
+    private long asyncDeadline;
+    private Thread flusher;
+    // the last failed flush, reported to the threads that waited for it
+    private IOException flushFailure;
+    private long failedOffset = -1;
+    // number of forces that made appended records durable
+    private long flushes = 0;
+    private volatile long groupCommitWindowNanos = DEFAULT_GROUP_COMMIT_WINDOW_MICROS * 1000;
+    private volatile int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private volatile long asyncCommitDelayNanos = DEFAULT_ASYNC_COMMIT_DELAY_MILLIS * 1000000;
 
     /**
      * @param f The log file's name
@@ -90,57 +168,141 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            writtenOffset = currentOffset;
+        }
+    }
+
+    /** Account for a record appended to the tail, holding the monitor */
+    private void appended() throws IOException {
+        currentOffset = writtenOffset + tailBytes.size();
+        if (tailBytes.size() >= LOG_TAIL_SIZE) {
+            writeTail();
+        }
+    }
+
+    /**
+     * Write the records appended to the tail to the file, in one write,
+     * holding the monitor. Reading the log from the file needs this first.
+     */
+    private void writeTail() throws IOException {
+        int size = tailBytes.size();
+        if (size > 0) {
+            tailBytes.writeTo(raf.getChannel(), writtenOffset);
+            writtenOffset += size;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * @return how many times the log was forced to disk so far; commits
+     *     grouped into one flush count once
+     */
+    public long getFlushCount() {
+        synchronized (flushLock) {
+            return flushes;
+        }
+    }
+
+    /**
+     * Let a group flush of the log wait up to windowMicros for more
+     * committing threads to join it, unless batch threads already wait.
+     * With a window of 0 a flush starts at once and groups whatever
+     * arrived during the previous one.
+     */
+    public void setGroupCommit(long windowMicros, int batch) {
+        groupCommitWindowNanos = windowMicros * 1000;
+        groupCommitBatch = batch;
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Bound the time the commit record of an asynchronous commit, see
+     * {@link #logCommit(TransactionId, boolean)}, can stay off disk.
+     */
+    public void setAsyncCommitDelay(long millis) {
+        asyncCommitDelayNanos = millis * 1000000;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException, TransactionAbortedException, DbException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        long gen, offset;
+        // the aborting transaction still holds its page locks, so rollback
+        // only needs the log monitor, not the buffer pool shards
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            tail.writeInt(ABORT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            appended();
+            writeTail();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastUpdate.remove(tid.getId());
+            gen = generation;
+            offset = currentOffset;
         }
+        awaitFlush(gen, offset);
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The record is appended under the monitor, but the wait for it to
+        reach the disk is not, so that concurrent commits share one flush.
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Write a commit record for the specified tid.
+        <p>
+        An asynchronous commit (synchronous false) returns without waiting
+        for the record to reach the disk; the flusher thread forces it within
+        the delay set by {@link #setAsyncCommitDelay(long)}. If the system
+        crashes before that, recovery finds no commit record and rolls the
+        transaction back.
+        @param tid The committing transaction.
+        @param synchronous Whether to wait for the record to be on disk.
+    */
+    public void logCommit(TransactionId tid, boolean synchronous) throws IOException {
+        long gen, offset;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            tail.writeInt(COMMIT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            appended();
+            // the file has the transaction once this returns, only the
+            // fsync is left to the flusher
+            writeTail();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastUpdate.remove(tid.getId());
+            gen = generation;
+            offset = currentOffset;
+        }
+        if (synchronous) {
+            awaitFlush(gen, offset);
+        } else {
+            scheduleFlush(gen, offset);
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -150,31 +312,86 @@ public class LogFile {
         @param after The after image of the page
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           offset of the previous update record of the transaction
            before page data (see writePageData)
            after page data
            start offset
+
+           or, if the page has a delta base (its last logged after image), of
+           a delta record: record type, transaction id, previous update offset,
+           the ranges that changed since then (see PageDelta) and start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        PageId pid = after.getId();
+        byte[] afterData = after.getPageData();
+        byte[] base = deltaBases.get(pid);
+        long prevUpdate = tidToLastUpdate.getOrDefault(tid.getId(), NO_UPDATE_RECORD);
+        if (base != null && base.length == afterData.length) {
+            tail.writeInt(DELTA_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(prevUpdate);
+            PageDelta.diff(pid, base, afterData).write(tail);
+            tail.writeLong(currentOffset);
+        } else {
+            tail.writeInt(UPDATE_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(prevUpdate);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+            writePageData(tail,before);
+            writePageData(tail,after);
+            tail.writeLong(currentOffset);
+        }
+        tidToLastUpdate.put(tid.getId(), currentOffset);
+        if (PageDelta.supports(pid)) {
+            deltaBases.put(pid, afterData);
+        }
+        long[] dirty = dirtyPages.computeIfAbsent(pid, k -> new long[]{currentOffset, 0});
+        dirty[1] = ++lastUpdate;
+        appended();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lastUpdate;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /**
+     * @return the number of the last update record logged, to pass to
+     *     {@link #pageWritten} for a page written without logging it
+     */
+    synchronized long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * Note that the page on disk holds the updates logged for it up to the
+     * one {@link #logWrite} numbered update, so that checkpoints need not
+     * make recovery redo them.
+     */
+    synchronized void pageWritten(PageId pid, long update) {
+        long[] dirty = dirtyPages.get(pid);
+        if (dirty != null && dirty[1] <= update) {
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /**
+     * Make the next update of the page a full image, because it was
+     * written or replaced without a log record, which also leaves nothing
+     * logged for it to redo.
+     */
+    synchronized void resetDeltaBase(PageId pid) {
+        deltaBases.remove(pid);
+        dirtyPages.remove(pid);
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -189,16 +406,16 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.writeInt(j);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -253,60 +470,83 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        tail.writeInt(BEGIN_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+     * <p>
+     * 模糊检查点：不刷写缓冲池，只在日志监视器下记下活跃事务和脏页表中最早的
+     * 未写盘更新，恢复从那里开始重做；这些页面随后交给后台的页面清理线程逐步写出，
+     * 下一个检查点就能从更靠后的位置开始。
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Set<PageId> pages;
+        boolean truncate;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            long startCpOffset = currentOffset;
+            long redoOffset = startCpOffset;
+            for (long[] dirty : dirtyPages.values()) {
+                redoOffset = Math.min(redoOffset, dirty[0]);
+            }
+            pages = new HashSet<>(dirtyPages.keySet());
+
+            tail.writeInt(CHECKPOINT_RECORD);
+            tail.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            tail.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                tail.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                tail.writeLong(tidToFirstLogRecord.get(key));
+            }
+            tail.writeLong(redoOffset);
+
+            tail.writeLong(currentOffset);
+            appended();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            // truncation copies what recovery still needs under the monitor,
+            // so it waits until that is no more than what it frees
+            long minLogRecord = redoOffset;
+            for (long first : tidToFirstLogRecord.values()) {
+                minLogRecord = Math.min(minLogRecord, first);
             }
+            truncate = currentOffset - minLogRecord <= minLogRecord - LONG_SIZE;
+            //Debug.log("CP OFFSET = " + currentOffset);
+
+            // the record must be on disk before the CP location at the
+            // beginning of the log file points to it
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            force();
         }
 
-        logTruncate();
+        if (truncate) {
+            logTruncate();
+        }
+        // writing them lets the next checkpoint start redo later
+        Database.getBufferPool().writeCheckpointPages(pages);
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeTail();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -332,6 +572,7 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+            minLogRecord = Math.min(minLogRecord, raf.readLong());
         }
 
         // we can truncate everything before minLogRecord
@@ -356,6 +597,19 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
+                case DELTA_RECORD:
+                    // the previous update of a transaction that is not
+                    // live any more may be truncated
+                    long prevUpdate = raf.readLong();
+                    logNew.writeLong(prevUpdate < minLogRecord
+                            ? NO_UPDATE_RECORD : (prevUpdate - minLogRecord) + LONG_SIZE);
+                    if (tidToLastUpdate.containsKey(record_tid)) {
+                        tidToLastUpdate.put(record_tid, newStart);
+                    }
+                    if (type == DELTA_RECORD) {
+                        PageDelta.read(raf).write(logNew);
+                        break;
+                    }
                     Page before = readPageData(raf);
                     Page after = readPageData(raf);
 
@@ -371,6 +625,7 @@ public class LogFile {
                         logNew.writeLong(xid);
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
                     break;
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
@@ -396,72 +651,65 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        writtenOffset = currentOffset;
+        for (long[] dirty : dirtyPages.values()) {
+            dirty[0] = (dirty[0] - minLogRecord) + LONG_SIZE;
+        }
+        raf.getChannel().force(true);
+        synchronized (flushLock) {
+            // the rewritten log is on disk, threads waiting for the old one are done
+            generation++;
+            flushedOffset = currentOffset;
+            requestedOffset = currentOffset;
+            asyncOffset = currentOffset;
+            flushLock.notifyAll();
+        }
         //print();
     }
 
     /** 回滚指定的事务，将它更新的任何页面的状态设置为其更新前的状态。
      * 为了保留事务语义，不在已经提交的事务上调用它
+     * <p>
+     * 从事务的最后一条更新记录开始，沿每条记录里的前一条更新偏移量倒着读，
+     * 只读这个事务自己的记录，代价与它写过的页面数成正比，与日志长度无关。
     */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
-        // bug
-        try {
-            synchronized (Database.getBufferPool()) {
-                synchronized (this) {
-                    preAppend();
-//                    long firstRecordLog = logStartRecordMap.get(tid.getId());
-//                    System.out.println("first record at:" + firstRecordLog + ", currentOffset at:" + currentOffset);
-
-                    raf.seek(0);
-                    List<Page> needRollBackPages = new ArrayList<>();
-
-                    while (raf.getFilePointer() < raf.length()) {
-                        int logType = raf.readInt();
-                        if (logType == 1 || logType == 2 || logType == 4) {
-                            long txid = raf.readLong();
-                            long offset = raf.readLong();
-                        } else if (logType == 3) {
-                            // only  UPDATE_RECORD is needed
-                            long txid = raf.readLong();
-                            Page before = readPageData(raf);
-                            Page after = readPageData(raf);
-                            long offset = raf.readLong();
-
-                            if (txid == tid.getId()) {
-                                needRollBackPages.add(before);
-                            }
-                        } else if (logType == 5) {
-                            long txid = raf.readLong();
-                            int keys = raf.readInt();
-                            for (int j = 0; j < keys; j++) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                        }
-                    }
-
-                    //  roll back for page list
-                    for (int i = needRollBackPages.size()-1; i >= 0; i--) {
-                        Page targetPage = Database.getBufferPool().getPage(tid, needRollBackPages.get(i).getId(), Permissions.READ_WRITE);
-//                        targetPage = needRollBackPages.get(i);
-                        Page oldPage = needRollBackPages.get(i);
-                        // bug
-                        Database.getBufferPool().swapPageByNewValue(targetPage, oldPage);
-                        oldPage.markDirty(true, tid);
-
-                        // TODO 强制刷盘
-                        DbFile heapFile = Database.getCatalog().getDatabaseFile(oldPage.getId().getTableId());
-                        heapFile.writePage(oldPage);
-                    }
+        synchronized (this) {
+            preAppend();
+            writeTail();
+            Long last = tidToLastUpdate.get(tid.getId());
+            long offset = last == null ? NO_UPDATE_RECORD : last;
+            while (offset != NO_UPDATE_RECORD) {
+                raf.seek(offset);
+                int logType = raf.readInt();
+                raf.readLong();
+                offset = raf.readLong();
+                Page oldPage;
+                if (logType == DELTA_RECORD) {
+                    // a delta is undone on the page on disk, which holds
+                    // everything tid logged for it
+                    oldPage = applyDelta(PageDelta.read(raf), false);
+                } else {
+                    oldPage = readPageData(raf);
+                }
+                // tid still holds its locks; a page that was stolen and
+                // evicted is only restored on disk, loading it here could
+                // evict another one while the log monitor is held
+                Page targetPage = Database.getBufferPool().peekPage(oldPage.getId());
+                if (targetPage != null) {
+                    Database.getBufferPool().swapPageByNewValue(targetPage, oldPage);
+                    oldPage.markDirty(true, tid);
                 }
+
+                // TODO 强制刷盘
+                DbFile heapFile = Database.getCatalog().getDatabaseFile(oldPage.getId().getTableId());
+                heapFile.writePage(oldPage);
+                // the restored page was not logged, and on disk it holds
+                // what the log says of it once the abort record is written
+                deltaBases.remove(oldPage.getId());
+                dirtyPages.remove(oldPage.getId());
             }
-        } catch (TransactionAbortedException e1) {
-            e1.printStackTrace();
-            rollback(tid);
-        } catch (DbException e2) {
-            e2.printStackTrace();
-        } finally {
-            raf.seek(raf.getFilePointer());
         }
     }
 
@@ -469,10 +717,14 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with every page on disk, the checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  // way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -480,62 +732,127 @@ public class LogFile {
     }
 
     /** 通过确保安装已提交事务的更新和未安装未提交事务的更新来恢复数据库系统
+     * <p>
+     * 日志只读一遍：从头向后扫描，检查点记录之后的更新按日志顺序重做（之前的更新
+     * 已随检查点写到磁盘）；检查点之后的中止记录处撤销该事务的全部更新，重演当时的
+     * 回滚；扫描结束时还没结束的事务再各自倒序撤销。重做和撤销都作用在页面的内存
+     * 副本上，每个页面最后只写一次磁盘。崩溃时只写了一半的日志尾部（例如异步提交的
+     * 提交记录）被截掉，这样的事务按未提交处理。
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-
-                raf.seek(0);
-                long checkPointOffset = raf.readLong();
-                List<Long> undoTxIdList = new ArrayList<>();
-                List<Long> redoAbortTxIdList = new ArrayList<>();
-                List<Long> redoCommitTxIdList = new ArrayList<>();
+        synchronized (this) {
+            recoveryUndecided = false;
+            // recovery writes pages without logging them
+            deltaBases.clear();
+            dirtyPages.clear();
 
-                if (checkPointOffset > 0) {
-                    raf.seek(checkPointOffset);
+            raf.seek(0);
+            long checkPointOffset = raf.readLong();
+            // updates before it were on disk at the checkpoint
+            long redoOffset = 0;
+            if (checkPointOffset != NO_CHECKPOINT_ID) {
+                raf.seek(checkPointOffset + INT_SIZE + LONG_SIZE);
+                int keys = raf.readInt();
+                raf.seek(raf.getFilePointer() + keys * 2L * LONG_SIZE);
+                redoOffset = raf.readLong();
+                raf.seek(LONG_SIZE);
+            }
+            // updates of the transactions not ended at the scan position, in log order
+            Map<Long,List<UpdatePagesHistory>> liveUpdates = new LinkedHashMap<>();
+            // data of the pages recovery changed
+            Map<PageId,byte[]> pages = new HashMap<>();
 
+            long recordStart = raf.getFilePointer();
+            try {
+                while (raf.getFilePointer() < raf.length()) {
+                    recordStart = raf.getFilePointer();
                     int logType = raf.readInt();
-                    long checkPointid = raf.readLong();
-                    int activeTransNum = raf.readInt();
-
-                    for (int i = 0; i < activeTransNum; i++) {
-                        long txId = raf.readLong();
-                        long firstLogRecord = raf.readLong();
-                        tidToFirstLogRecord.put(txId, firstLogRecord);
-                        // init tid as undo
-                        undoTxIdList.add(txId);
+                    long tid = raf.readLong();
+                    UpdatePagesHistory update = null;
+                    if (logType == UPDATE_RECORD) {
+                        raf.readLong();
+                        Page before = readPageData(raf);
+                        Page after = readPageData(raf);
+                        update = new UpdatePagesHistory(before, after);
+                    } else if (logType == DELTA_RECORD) {
+                        raf.readLong();
+                        update = new UpdatePagesHistory(PageDelta.read(raf));
+                    } else if (logType == CHECKPOINT_RECORD) {
+                        int keys = raf.readInt();
+                        for (int j = 0; j < keys; j++) {
+                            raf.readLong();
+                            raf.readLong();
+                        }
+                        raf.readLong();
                     }
-                }
-
-                logScan(raf, undoTxIdList, redoAbortTxIdList, redoCommitTxIdList);
-
-                // do undo
-                for (int i = 0; i < undoTxIdList.size(); i++) {
-                    doRecover(raf, undoTxIdList.get(i), true, true);
-                }
+                    raf.readLong();
 
-                // do redo abort
-                for (int i = 0; i < redoAbortTxIdList.size(); i++) {
-                    doRecover(raf, redoAbortTxIdList.get(i), false, true);
+                    boolean afterCheckpoint = recordStart >= redoOffset;
+                    if (logType == BEGIN_RECORD) {
+                        liveUpdates.put(tid, new ArrayList<>());
+                    } else if (logType == COMMIT_RECORD) {
+                        liveUpdates.remove(tid);
+                    } else if (logType == ABORT_RECORD) {
+                        List<UpdatePagesHistory> updates = liveUpdates.remove(tid);
+                        if (afterCheckpoint && updates != null) {
+                            undo(updates, pages);
+                        }
+                    } else if (update != null) {
+                        // an ended transaction may still log the page its
+                        // rollback restored, which is only redone
+                        List<UpdatePagesHistory> updates = liveUpdates.get(tid);
+                        if (updates != null) {
+                            updates.add(update);
+                        }
+                        if (afterCheckpoint) {
+                            replay(update, true, pages);
+                        }
+                    }
                 }
+            } catch (EOFException e) {
+                // cut off a torn record at the end
+                raf.setLength(recordStart);
+                raf.seek(recordStart);
+            }
+            currentOffset = raf.getFilePointer();
+            writtenOffset = currentOffset;
+
+            // transactions running at the crash
+            for (Map.Entry<Long,List<UpdatePagesHistory>> loser : liveUpdates.entrySet()) {
+                undo(loser.getValue(), pages);
+                tail.writeInt(ABORT_RECORD);
+                tail.writeLong(loser.getKey());
+                tail.writeLong(currentOffset);
+                appended();
+            }
+            writeTail();
 
-                for (int i = 0; i < redoCommitTxIdList.size(); i++) {
-                    doRecover(raf, redoCommitTxIdList.get(i), false, false);
-                }
+            for (Map.Entry<PageId,byte[]> page : pages.entrySet()) {
+                DbFile file = Database.getCatalog().getDatabaseFile(page.getKey().getTableId());
+                file.writePage(file.decodePage(page.getKey(), page.getValue()));
             }
-         }
+        }
     }
 
     class UpdatePagesHistory {
         private Page before;
         private Page after;
+        // set instead of the images for a DELTA record
+        private PageDelta delta;
 
         public UpdatePagesHistory(Page before, Page after) {
             this.before = before;
             this.after = after;
         }
 
+        public UpdatePagesHistory(PageDelta delta) {
+            this.delta = delta;
+        }
+
+        public PageDelta getDelta() {
+            return delta;
+        }
+
         public Page getBefore() {
             return before;
         }
@@ -551,116 +868,67 @@ public class LogFile {
         public void setAfter(Page after) {
             this.after = after;
         }
-    }
-
-    private void doRecover(RandomAccessFile raf, long targetTxId, boolean isUnDo, boolean isAbort) throws  IOException {
-        raf.seek(0);
 
-        List<UpdatePagesHistory> updateList = getUpdateListFromLog(raf, targetTxId);
-
-        if(isAbort) {
-            for (int i = updateList.size() -1; i >= 0; i--) {
-                UpdatePagesHistory updatePageRecord = updateList.get(i);
-                Page targetPage = updatePageRecord.getBefore();
-                // flush before page
-                DbFile heapFile = Database.getCatalog().getDatabaseFile(targetPage.getId().getTableId());
-                heapFile.writePage(targetPage);
-
-                if (isUnDo) {
-                    // write abort to log
-                    raf.writeInt(ABORT_RECORD);
-                    raf.writeLong(targetTxId);
-                    raf.writeLong(currentOffset);
-                    currentOffset = raf.getFilePointer();
-                }
-            }
-        } else {
-            if (!isUnDo) {
-                for (int i = 0; i < updateList.size(); i++) {
-                    UpdatePagesHistory updatePageRecord = updateList.get(i);
-                    Page targetPage = updatePageRecord.getAfter();
-                    // flush after page
-                    DbFile heapFile = Database.getCatalog().getDatabaseFile(targetPage.getId().getTableId());
-                    heapFile.writePage(targetPage);
-                }
-            } else {
-                System.out.println("Error happened");
-                throw new IOException();
-            }
+        public PageId getPageId() {
+            return delta != null ? delta.getPageId() : after.getId();
         }
     }
 
-    private List<UpdatePagesHistory> getUpdateListFromLog (RandomAccessFile raf, long targetTxId) throws IOException {
-//        raf.seek(0);
-        List<UpdatePagesHistory> updateList = new ArrayList<>();
-
-        while (raf.getFilePointer() < raf.length()) {
-            int logType = raf.readInt();
-
-            if (logType == 1 || logType == 2 || logType == 4) { // 1 ABORT_RECORD  2 COMMIT_RECORD   4 BEGIN_TRANS
-                long txid = raf.readLong();
-                long offset = raf.readLong();
-            } else if (logType == 3) {  // 3 UPDATE_RECORD
-                // only UPDATE_RECORD is needed
-                long txid = raf.readLong();
-                Page before = readPageData(raf);
-                Page after = readPageData(raf);
-                long offset = raf.readLong();
-
-                if (txid == targetTxId) {
-                    UpdatePagesHistory pageHistory = new UpdatePagesHistory(before, after);
-                    updateList.add(pageHistory);
-                }
-            } else if (logType == 5) {  // CHECKPOINT_RECORD
-                long txid = raf.readLong();
-                int keys = raf.readInt();
-                for (int j = 0; j < keys; j++) {
-                    raf.readLong();
-                    raf.readLong();
-                }
-            }
+    /**
+     * Redo or undo an update on the recovered data of its page, which is
+     * read from disk the first time recovery needs it.
+     */
+    private void replay(UpdatePagesHistory update, boolean redo, Map<PageId,byte[]> pages) {
+        PageId pid = update.getPageId();
+        PageDelta delta = update.getDelta();
+        if (delta == null) {
+            pages.put(pid, (redo ? update.getAfter() : update.getBefore()).getPageData());
+            return;
         }
-
-        return updateList;
+        byte[] data = pages.get(pid);
+        if (data == null) {
+            data = readDiskPage(pid, delta.getPageLength());
+        }
+        pages.put(pid, redo ? delta.redo(data) : delta.undo(data));
     }
 
+    private void undo(List<UpdatePagesHistory> updates, Map<PageId,byte[]> pages) {
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            replay(updates.get(i), false, pages);
+        }
+    }
 
-    private void logScan(RandomAccessFile raf, List<Long> undoTxIdList, List<Long> redoAbortTxIdList, List<Long> redoCommitTxIdList) throws IOException {
-        while (raf.getFilePointer() < raf.length()) {
-            int logType = raf.readInt();
-
-            if (logType == 1) { // ABORT_RECORD
-                long tid = raf.readLong();
-                long offset = raf.readLong();
-
-                // abort should redo
-                undoTxIdList.remove(tid);
-                redoAbortTxIdList.add(tid);
-            } else if (logType == 2) { // COMMIT_RECORD
-                long tid = raf.readLong();
-                long offset = raf.readLong();
-
-                // commit should redo
-                undoTxIdList.remove(tid);
-                redoCommitTxIdList.add(tid);
-            } else if (logType == 3) { // UPDATE_RECORD
-                long tid = raf.readLong();
-                Page before = readPageData(raf);
-                Page after = readPageData(raf);
-                long offset = raf.readLong();
-            } else if (logType == 4) { // BEGIN_TRANS
-                long tid = raf.readLong();
-                long offset = raf.readLong();
-
-                // init as undo
-                undoTxIdList.add(tid);
-            }
+    /**
+     * @return the data of the page on disk, or zeros if it never got there
+     */
+    private byte[] readDiskPage(PageId pid, int pageLength) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[pageLength];
         }
     }
 
+    /**
+     * Undo or redo a delta record on the page on disk, which must hold the
+     * image the delta was logged after (undo) or before (redo) in the
+     * ranges it does not change.
+     *
+     * @return the page as written back
+     */
+    private Page applyDelta(PageDelta delta, boolean redo) throws IOException {
+        PageId pid = delta.getPageId();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data = readDiskPage(pid, delta.getPageLength());
+        Page page = file.decodePage(pid, redo ? delta.redo(data) : delta.undo(data));
+        file.writePage(page);
+        return page;
+    }
+
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        writeTail();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -700,11 +968,13 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    System.out.println(raf.getFilePointer() + ": REDO START OFFSET: " + raf.readLong());
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS UPDATE OFFSET: " + raf.readLong());
 
                     long start = raf.getFilePointer();
                     Page before = readPageData(raf);
@@ -722,6 +992,20 @@ public class LogFile {
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS UPDATE OFFSET: " + raf.readLong());
+
+                    long deltaStart = raf.getFilePointer();
+                    PageDelta delta = PageDelta.read(raf);
+
+                    System.out.println(deltaStart + ": table id " + delta.getPageId().getTableId()
+                            + ", page number " + delta.getPageId().getPageNumber());
+                    System.out.println(deltaStart + " TO " + raf.getFilePointer() + ": changed ranges");
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -735,8 +1019,183 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force everything appended to the log so far to disk.
+     * <p>
+     * 组提交：不持有日志监视器的调用者只登记要等待的偏移量，由一个刷盘线程用一次 fsync
+     * 满足当时所有的等待者，刷盘期间其他线程可以继续追加日志记录。持有监视器的调用者
+     * （中止、检查点）直接刷盘。
+     */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            // the flusher needs the monitor to see the end of the log
+            writeTail();
+            raf.getChannel().force(true);
+            flushed(generation, currentOffset);
+            return;
+        }
+        long gen, offset;
+        synchronized (this) {
+            gen = generation;
+            offset = currentOffset;
+        }
+        awaitFlush(gen, offset);
     }
 
+    /**
+     * Wait until the log of the given generation is on disk up to offset,
+     * starting the flusher thread if it is not running.
+     */
+    private void awaitFlush(long gen, long offset) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                if (gen != generation || offset <= flushedOffset) {
+                    return;
+                }
+                requestedOffset = Math.max(requestedOffset, offset);
+                startFlusher();
+                waiters++;
+                flushLock.notifyAll();
+                try {
+                    while (gen == generation && offset > flushedOffset) {
+                        if (flushFailure != null && offset <= failedOffset) {
+                            throw new IOException("failed to force the log", flushFailure);
+                        }
+                        try {
+                            flushLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Have the log of the given generation forced up to offset within the
+     * asynchronous commit delay, without waiting for it.
+     */
+    private void scheduleFlush(long gen, long offset) {
+        synchronized (flushLock) {
+            if (gen != generation || offset <= flushedOffset) {
+                return;
+            }
+            if (asyncOffset <= flushedOffset) {
+                asyncDeadline = System.nanoTime() + asyncCommitDelayNanos;
+                flushLock.notifyAll();
+            }
+            asyncOffset = Math.max(asyncOffset, offset);
+            startFlusher();
+        }
+    }
+
+    // holding flushLock
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private void flushed(long gen, long offset) {
+        synchronized (flushLock) {
+            flushes++;
+            if (gen == generation && offset > flushedOffset) {
+                flushedOffset = offset;
+                flushFailure = null;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Body of the flusher thread: one fsync for everything appended when it
+     * starts, after waiting up to the group commit window for more threads
+     * to need it, or when the oldest asynchronous commit not on disk is due.
+     * Exits when nobody needed a flush for a while.
+     */
+    private void runFlusher() {
+        while (true) {
+            synchronized (flushLock) {
+                long idleSince = System.currentTimeMillis();
+                while (waiters == 0 || requestedOffset <= flushedOffset) {
+                    try {
+                        if (asyncOffset > flushedOffset) {
+                            long due = asyncDeadline - System.nanoTime();
+                            if (due <= 0) {
+                                break;
+                            }
+                            flushLock.wait(due / 1000000, (int) (due % 1000000));
+                            continue;
+                        }
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (idle >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        flushLock.wait(FLUSHER_IDLE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        // only exits when idle
+                    }
+                }
+                long deadline = System.nanoTime() + groupCommitWindowNanos;
+                long left;
+                while (waiters > 0 && waiters < groupCommitBatch && (left = deadline - System.nanoTime()) > 0) {
+                    try {
+                        flushLock.wait(left / 1000000, (int) (left % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            long gen, target = 0;
+            try {
+                FileChannel channel;
+                synchronized (this) {
+                    gen = generation;
+                    target = currentOffset;
+                    channel = raf.getChannel();
+                    writeTail();
+                }
+                channel.force(true);
+                flushed(gen, target);
+            } catch (ClosedChannelException e) {
+                // truncated meanwhile, which forced the new log itself
+            } catch (IOException e) {
+                synchronized (flushLock) {
+                    flushFailure = e;
+                    failedOffset = target;
+                    // retry asynchronous commits after another delay, not at once
+                    asyncDeadline = System.nanoTime() + asyncCommitDelayNanos;
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** The records appended to the log and not written to the file yet */
+    private static class LogTail extends ByteArrayOutputStream {
+
+        LogTail() {
+            super(LOG_TAIL_SIZE);
+        }
+
+        /** Write the contents at position of the channel and empty the tail */
+        void writeTo(FileChannel channel, long position) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buf, 0, count);
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            reset();
+        }
+    }
 }
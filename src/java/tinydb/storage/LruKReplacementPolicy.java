@@ -0,0 +1,129 @@
+package tinydb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Scan-resistant LRU-K replacement.
+ * <p>
+ * 被引用次数少于 K 次的页面（后向 K 距离为无穷大）放在 history 队列中，按首次引用的顺序淘汰；
+ * 达到 K 次引用的页面进入 hot 队列，按 LRU 顺序淘汰。history 中的页面总是先于 hot 中的页面被淘汰，
+ * 所以一次大的顺序扫描只会冲掉它自己读入的页面，而不会冲掉被反复点查的热点页面。
+ * <p>
+ * Reference counts of recently evicted pages are retained for a bounded
+ * number of pages, so a page that is re-read shortly after eviction keeps
+ * its history. Both queues are linked hash maps, so every operation is O(1)
+ * amortized.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    /** Default number of references needed to become hot. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedCapacity;
+
+    // pages with fewer than k references, in order of first reference
+    private final LinkedHashMap<PageId,Integer> history = new LinkedHashMap<>();
+    // pages with at least k references, least recently used first
+    private final LinkedHashMap<PageId,Boolean> hot = new LinkedHashMap<>(16, 0.75f, true);
+    // reference counts of pages evicted while still in history
+    private final LinkedHashMap<PageId,Integer> retained;
+
+    /**
+     * @param k number of references after which a page is considered hot
+     * @param retainedCapacity how many evicted pages to remember the
+     *     reference count of, typically the size of the pool
+     */
+    public LruKReplacementPolicy(int k, int retainedCapacity) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.retainedCapacity = retainedCapacity;
+        this.retained = new LinkedHashMap<PageId,Integer>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId,Integer> eldest) {
+                return size() > LruKReplacementPolicy.this.retainedCapacity;
+            }
+        };
+    }
+
+    public LruKReplacementPolicy(int retainedCapacity) {
+        this(DEFAULT_K, retainedCapacity);
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        if (hot.containsKey(pid)) {
+            // moves pid to the most recently used end
+            hot.get(pid);
+            return;
+        }
+
+        Integer count = history.get(pid);
+        if (count == null) {
+            count = retained.remove(pid);
+        }
+        count = count == null ? 1 : count + 1;
+
+        if (count >= k) {
+            history.remove(pid);
+            hot.put(pid, Boolean.TRUE);
+        } else {
+            // re-putting an existing key keeps its first-reference position
+            history.put(pid, count);
+        }
+    }
+
+    /**
+     * A prefetched page enters history without a reference, so that the scan
+     * that reads it later does not make it hot.
+     */
+    @Override
+    public void recordPrefetch(PageId pid) {
+        if (hot.containsKey(pid) || history.containsKey(pid)) {
+            return;
+        }
+        Integer count = retained.remove(pid);
+        history.put(pid, count == null ? 0 : count);
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        history.remove(pid);
+        hot.remove(pid);
+    }
+
+    @Override
+    public PageId victim(Predicate<PageId> evictable) {
+        Iterator<Map.Entry<PageId,Integer>> it = history.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId,Integer> e = it.next();
+            if (evictable.test(e.getKey())) {
+                it.remove();
+                retained.put(e.getKey(), e.getValue());
+                return e.getKey();
+            }
+        }
+
+        Iterator<PageId> hotIt = hot.keySet().iterator();
+        while (hotIt.hasNext()) {
+            PageId pid = hotIt.next();
+            if (evictable.test(pid)) {
+                hotIt.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return history.size() + hot.size();
+    }
+}
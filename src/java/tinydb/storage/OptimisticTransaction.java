@@ -0,0 +1,20 @@
+package tinydb.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The private state of a running transaction under optimistic concurrency
+ * control.
+ * <p>
+ * 读取不加锁：每个页面第一次被读到时，记下当时已有多少个提交修改过它（页面的版本）。
+ * 要写的页面在事务里是已提交内容的一份私有副本，提交时才装进缓冲池。
+ * 提交时检查读过的页面版本都没有变，否则事务中止。
+ */
+class OptimisticTransaction {
+
+    // page -> number of commits that had changed it when it was first read
+    final Map<PageId,Long> reads = new ConcurrentHashMap<>();
+    // private copies of the pages read for writing
+    final Map<PageId,Page> writes = new ConcurrentHashMap<>();
+}
@@ -5,6 +5,10 @@ import tinydb.transaction.TransactionId;
 /**
  * Page is the interface used to represent pages that are resident in the
   BufferPool.  DbFiles will read and write pages from disk.
+  <p>
+  markDirty() and isDirty() must synchronize on the page itself: background
+  writers lock the page to clear its dirty flag only if it was not changed
+  while being written.
  */
 public interface Page {
 
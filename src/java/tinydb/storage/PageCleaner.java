@@ -0,0 +1,132 @@
+package tinydb.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Background writer that keeps a fraction of the BufferPool clean.
+ * <p>
+ * 后台线程周期性地检查缓冲池中干净页（包括空闲帧）所占的比例，低于目标比例时按照限速把脏页
+ * 写回各自的 DbFile，这样淘汰页面时总能找到干净页，提交时需要同步写出的页面也更少。
+ * Every write goes through {@link BufferPool#writeBackPage}, which logs the
+ * before and after image and forces the log first, so pages of running
+ * transactions can be undone from the log if those transactions abort.
+ * The pages a checkpoint found dirty are also written here, with what is
+ * left of the budget, see {@link #writeLater}.
+ */
+class PageCleaner extends Thread {
+
+    /** How often the cleaner wakes up, in ms. */
+    static final long TICK_MILLIS = 100;
+
+    private final BufferPool pool;
+    private volatile double cleanTarget;
+    private volatile int maxWritesPerSecond;
+    private volatile boolean running = true;
+    private final Object signal = new Object();
+    // pages a checkpoint wants written
+    private final Queue<PageId> checkpointPages = new ConcurrentLinkedQueue<>();
+
+    PageCleaner(BufferPool pool, double cleanTarget, int maxWritesPerSecond) {
+        super("page-cleaner");
+        setDaemon(true);
+        this.pool = pool;
+        this.cleanTarget = cleanTarget;
+        this.maxWritesPerSecond = maxWritesPerSecond;
+    }
+
+    void setCleanTarget(double cleanTarget) {
+        this.cleanTarget = cleanTarget;
+    }
+
+    void setMaxWritesPerSecond(int maxWritesPerSecond) {
+        this.maxWritesPerSecond = maxWritesPerSecond;
+    }
+
+    /**
+     * Ask the cleaner to run a round now instead of at the next tick.
+     */
+    void wakeUp() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Write the pages after those needed to meet the clean target, so that
+     * the next checkpoint can start recovery later in the log.
+     */
+    void writeLater(Collection<PageId> pids) {
+        checkpointPages.addAll(pids);
+        wakeUp();
+    }
+
+    /**
+     * Stop the cleaner and wait for the current round to finish.
+     */
+    void shutdown() {
+        running = false;
+        wakeUp();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                cleanRound();
+                synchronized (signal) {
+                    if (running) {
+                        signal.wait(TICK_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // a failed write leaves the page dirty, try again next round
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write dirty pages until the clean target is met or the write budget of
+     * one tick is spent, then the pages of the last checkpoint while budget
+     * is left.
+     *
+     * @return the number of pages written
+     */
+    int cleanRound() throws IOException {
+        int budget = Math.max(1, (int) (maxWritesPerSecond * TICK_MILLIS / 1000));
+        int dirtyAllowed = (int) (pool.getNumPages() * (1.0 - cleanTarget));
+        int excess = pool.countDirtyPages() - dirtyAllowed;
+        int written = 0;
+        if (excess > 0) {
+            for (Page p : pool.dirtyPages()) {
+                if (written >= budget || written >= excess || !running) {
+                    break;
+                }
+                if (pool.writeBackPage(p)) {
+                    written++;
+                }
+            }
+        }
+        while (written < budget && running) {
+            PageId pid = checkpointPages.poll();
+            if (pid == null) {
+                break;
+            }
+            Page p = pool.peekPage(pid);
+            if (p != null && pool.writeBackPage(p)) {
+                written++;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,162 @@
+package tinydb.storage;
+
+import tinydb.index.BTreePageId;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The byte ranges in which two images of a page differ, with their old and
+ * new contents: the body of a delta log record.
+ * <p>
+ * 插入或删除一个元组只改动页头的一个字节和一个槽位，所以只记录变化的字节区间，
+ * 而不是整页的前像和后像。redo 把区间改成新内容，undo 改回旧内容，两者都作用在
+ * 页面当前的字节上，因此日志中同一页面的 delta 必须连成一条链：每条的旧内容
+ * 就是上一条的新内容。
+ */
+class PageDelta {
+
+    // equal bytes between two changed ranges up to which they are merged,
+    // since every range costs two ints
+    private static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int pageLength;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int pageLength, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageLength = pageLength;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns the page data from into to; both must
+     *     have the same length
+     */
+    static PageDelta diff(PageId pid, byte[] from, byte[] to) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < from.length) {
+            if (from[i] == to[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < from.length && j - end <= MERGE_GAP; j++) {
+                if (from[j] != to[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(from, start, end);
+            after[r] = Arrays.copyOfRange(to, start, end);
+        }
+        return new PageDelta(pid, from.length, offsets, before, after);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    int getPageLength() {
+        return pageLength;
+    }
+
+    /**
+     * @return a copy of page with the new contents of the ranges
+     */
+    byte[] redo(byte[] page) {
+        return apply(page, after);
+    }
+
+    /**
+     * @return a copy of page with the old contents of the ranges
+     */
+    byte[] undo(byte[] page) {
+        return apply(page, before);
+    }
+
+    private byte[] apply(byte[] page, byte[][] contents) {
+        byte[] result = page.clone();
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(contents[r], 0, result, offsets[r], contents[r].length);
+        }
+        return result;
+    }
+
+    /**
+     * Write the page id, the page length and the ranges. The page id is
+     * written as its serialized ints, whose number tells a heap page id (2)
+     * from a B+ tree page id (3).
+     */
+    void write(DataOutput out) throws IOException {
+        int[] id = pid.serialize();
+        out.writeByte(id.length);
+        for (int v : id) {
+            out.writeInt(v);
+        }
+        out.writeInt(pageLength);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int[] id = new int[in.readByte()];
+        for (int k = 0; k < id.length; k++) {
+            id[k] = in.readInt();
+        }
+        PageId pid;
+        if (id.length == 2) {
+            pid = new HeapPageId(id[0], id[1]);
+        } else if (id.length == 3) {
+            pid = new BTreePageId(id[0], id[1], id[2]);
+        } else {
+            throw new IOException("unknown page id of " + id.length + " ints in delta record");
+        }
+        int pageLength = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageLength, offsets, before, after);
+    }
+
+    /**
+     * @return true if a page id of this kind can be written by {@link #write}
+     */
+    static boolean supports(PageId pid) {
+        return pid instanceof HeapPageId || pid instanceof BTreePageId;
+    }
+}
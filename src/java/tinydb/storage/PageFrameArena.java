@@ -0,0 +1,100 @@
+package tinydb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A preallocated off-heap arena of fixed-size page frames.
+ * <p>
+ * 页面字节存放在直接内存（direct ByteBuffer）中，不计入 Java 堆，也不会被 GC 扫描。
+ * The arena is split into chunks because a single ByteBuffer cannot exceed
+ * 2 GB, which lets a pool hold tens of GB of pages.
+ * <p>
+ * Frame contents are not synchronized; callers must not read a frame while it
+ * is being written or freed. BufferPoolShard does all of that under its latch.
+ */
+public class PageFrameArena {
+
+    /** Largest chunk allocated at once, a multiple of any sane page size. */
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final int numFrames;
+    private final ByteBuffer[] chunks;
+    private final int[] lengths;
+    private final Deque<Integer> freeFrames = new ArrayDeque<>();
+
+    /**
+     * @param numFrames number of frames to preallocate
+     * @param frameSize size of each frame, the largest page it can hold
+     */
+    public PageFrameArena(int numFrames, int frameSize) {
+        this.numFrames = numFrames;
+        this.frameSize = frameSize;
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / frameSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        lengths = new int[numFrames];
+        for (int i = numFrames - 1; i >= 0; i--) {
+            freeFrames.push(i);
+        }
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return the index of a free frame
+     * @throws IllegalStateException if every frame is in use
+     */
+    public synchronized int allocate() {
+        Integer frame = freeFrames.poll();
+        if (frame == null) {
+            throw new IllegalStateException("page frame arena exhausted");
+        }
+        return frame;
+    }
+
+    public synchronized void free(int frame) {
+        lengths[frame] = 0;
+        freeFrames.push(frame);
+    }
+
+    /**
+     * Copy page bytes into a frame.
+     */
+    public void write(int frame, byte[] data) {
+        if (data.length > frameSize) {
+            throw new IllegalArgumentException("page of " + data.length + " bytes does not fit a frame of " + frameSize);
+        }
+        ByteBuffer b = slice(frame);
+        b.put(data);
+        lengths[frame] = data.length;
+    }
+
+    /**
+     * Copy the bytes of a frame onto the heap.
+     */
+    public byte[] read(int frame) {
+        byte[] data = new byte[lengths[frame]];
+        slice(frame).get(data);
+        return data;
+    }
+
+    private ByteBuffer slice(int frame) {
+        ByteBuffer b = chunks[frame / framesPerChunk].duplicate();
+        b.position((frame % framesPerChunk) * frameSize);
+        return b;
+    }
+}
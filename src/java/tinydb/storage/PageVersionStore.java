@@ -0,0 +1,235 @@
+package tinydb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Committed versions of pages, for transactions that read a snapshot.
+ * <p>
+ * 每个提交按顺序得到一个提交时间戳；页面的一个版本在 [begin, end) 这段时间戳内有效。
+ * 页面当前的已提交版本就是它的 before image，这里只保存被后来的提交替换掉、但还有快照
+ * 可能需要的旧版本。快照时间戳 S 读取 begin <= S < end 的版本；所有提交都已结束并且
+ * 不早于最老快照的版本会被回收。
+ * <p>
+ * A commit keeps old versions only while snapshots exist. A snapshot that
+ * starts while commits that kept no versions are running waits for them,
+ * so it never needs a version that was not kept.
+ * <p>
+ * The timestamps are guarded by the monitor of the store, which is never
+ * held during I/O; versions are guarded by their chain's monitor.
+ */
+class PageVersionStore {
+
+    /**
+     * The running commit of one transaction.
+     */
+    static final class Commit {
+        final long ts;
+        // false if no snapshot existed when the commit started
+        final boolean keepVersions;
+
+        Commit(long ts, boolean keepVersions) {
+            this.ts = ts;
+            this.keepVersions = keepVersions;
+        }
+    }
+
+    private static final class Version {
+        final long begin;
+        final long end;
+        final byte[] data;
+
+        Version(long begin, long end, byte[] data) {
+            this.begin = begin;
+            this.end = end;
+            this.data = data;
+        }
+    }
+
+    private static final class Chain {
+        // begin of the current version, i.e. of the page's before image
+        long currentBegin = 0;
+        // superseded versions, newest first
+        final ArrayDeque<Version> old = new ArrayDeque<>();
+    }
+
+    private long lastCommitTs = 0;
+    private final TreeSet<Long> committing = new TreeSet<>();
+    // highest timestamp of a commit that kept no versions
+    private long unversionedTs = 0;
+    // snapshot timestamp -> number of snapshots reading it
+    private final TreeMap<Long,Integer> snapshots = new TreeMap<>();
+    // snapshots that are registered or waiting to be
+    private int snapshotCount = 0;
+
+    private final ConcurrentHashMap<PageId,Chain> chains = new ConcurrentHashMap<>();
+    // committed contents of pages whose copy on disk holds uncommitted changes
+    private final ConcurrentHashMap<PageId,byte[]> stolen = new ConcurrentHashMap<>();
+
+    /**
+     * @return the newest timestamp whose commit and all earlier ones are complete
+     */
+    private long visible() {
+        return committing.isEmpty() ? lastCommitTs : committing.first() - 1;
+    }
+
+    synchronized Commit startCommit() {
+        long ts = ++lastCommitTs;
+        committing.add(ts);
+        boolean keep = snapshotCount > 0;
+        if (!keep) {
+            unversionedTs = ts;
+        }
+        return new Commit(ts, keep);
+    }
+
+    void finishCommit(Commit c) {
+        synchronized (this) {
+            committing.remove(c.ts);
+            notifyAll();
+        }
+        if (c.keepVersions) {
+            collect();
+        }
+    }
+
+    /**
+     * @return the timestamp of a new snapshot of everything committed so far
+     */
+    synchronized long beginSnapshot() {
+        snapshotCount++;
+        boolean interrupted = false;
+        while (visible() < unversionedTs) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        long ts = visible();
+        snapshots.merge(ts, 1, Integer::sum);
+        return ts;
+    }
+
+    void endSnapshot(long ts) {
+        synchronized (this) {
+            snapshots.computeIfPresent(ts, (k, n) -> n == 1 ? null : n - 1);
+            snapshotCount--;
+        }
+        collect();
+    }
+
+    /**
+     * @return versions that end at or before this timestamp are not needed
+     */
+    private synchronized long horizon() {
+        long h = visible();
+        return snapshots.isEmpty() ? h : Math.min(h, snapshots.firstKey());
+    }
+
+    /**
+     * Keep the committed contents a page had before a commit. Must be called
+     * holding the page's monitor, before the page's before image changes.
+     */
+    void retire(PageId pid, byte[] committed, Commit c) {
+        if (!c.keepVersions) {
+            return;
+        }
+        chains.compute(pid, (k, chain) -> {
+            if (chain == null) {
+                chain = new Chain();
+            }
+            synchronized (chain) {
+                chain.old.addFirst(new Version(chain.currentBegin, c.ts, committed));
+                chain.currentBegin = c.ts;
+            }
+            return chain;
+        });
+    }
+
+    /**
+     * @return the contents of the page as of snapshot ts, or null if that is
+     *     the page's current committed version; must be called holding the
+     *     page's monitor
+     * @throws IllegalStateException if the version was already collected
+     */
+    byte[] read(PageId pid, long ts) {
+        Chain chain = chains.get(pid);
+        if (chain == null) {
+            return null;
+        }
+        synchronized (chain) {
+            if (chain.currentBegin <= ts) {
+                return null;
+            }
+            for (Version v : chain.old) {
+                if (v.begin <= ts) {
+                    return v.data;
+                }
+            }
+        }
+        throw new IllegalStateException("no version of " + pid + " for snapshot " + ts);
+    }
+
+    /**
+     * Drop versions no snapshot can read any more.
+     */
+    void collect() {
+        long h = horizon();
+        for (PageId pid : chains.keySet()) {
+            chains.computeIfPresent(pid, (k, chain) -> {
+                synchronized (chain) {
+                    Iterator<Version> it = chain.old.descendingIterator();
+                    while (it.hasNext() && it.next().end <= h) {
+                        it.remove();
+                    }
+                    return chain.old.isEmpty() ? null : chain;
+                }
+            });
+        }
+    }
+
+    /**
+     * Remember the committed contents of a page before uncommitted changes
+     * are written over them on disk.
+     */
+    void stealing(PageId pid, byte[] committed) {
+        stolen.putIfAbsent(pid, committed);
+    }
+
+    /**
+     * @return the committed contents of a page whose copy on disk is
+     *     uncommitted, or null
+     */
+    byte[] stolen(PageId pid) {
+        return stolen.get(pid);
+    }
+
+    /**
+     * Forget the stolen contents of a page, once the transaction that wrote
+     * it completed.
+     */
+    void restored(PageId pid) {
+        stolen.remove(pid);
+    }
+
+    /**
+     * @return the number of old page versions kept
+     */
+    int size() {
+        int n = 0;
+        for (Map.Entry<PageId,Chain> e : chains.entrySet()) {
+            synchronized (e.getValue()) {
+                n += e.getValue().old.size();
+            }
+        }
+        return n;
+    }
+}
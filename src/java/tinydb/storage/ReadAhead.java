@@ -0,0 +1,122 @@
+package tinydb.storage;
+
+import tinydb.common.Database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Detects sequential page access of one scan and issues read-ahead for it.
+ * <p>
+ * 连续访问相邻页面（或沿着链表访问下一页）即视为顺序扫描，此后每当已预读但尚未访问的页面
+ * 不足窗口的一半时，就通过 {@link BufferPool#prefetch} 异步预读下一批页面。窗口从
+ * {@link #INITIAL_WINDOW} 开始翻倍，直到 {@link BufferPool#getMaxReadAheadPages()}；
+ * 非顺序访问会让窗口从头开始。
+ * <p>
+ * One instance belongs to one iterator and is not thread-safe.
+ */
+public class ReadAhead {
+
+    /** Pages read ahead once a scan is found to be sequential. */
+    public static final int INITIAL_WINDOW = 4;
+
+    private final IntFunction<PageId> pageIdOf;
+    private final BufferRing ring;
+    private int lastPage = -2;
+    private int window = 0;
+    // first page number that has not been requested yet
+    private int next = 0;
+    // pages followed along a chain since the last request
+    private int hops = 0;
+
+    /**
+     * @param pageIdOf maps a page number of the scanned file to its id
+     * @param ring the ring of the scan, or null
+     */
+    public ReadAhead(IntFunction<PageId> pageIdOf, BufferRing ring) {
+        this.pageIdOf = pageIdOf;
+        this.ring = ring;
+    }
+
+    public ReadAhead(IntFunction<PageId> pageIdOf) {
+        this(pageIdOf, null);
+    }
+
+    /**
+     * Read-ahead for files whose pages are only linked to each other, see
+     * {@link #follow}.
+     */
+    public ReadAhead() {
+        this(null, null);
+    }
+
+    /**
+     * Forget the access pattern, e.g. when the scan is rewound.
+     */
+    public void reset() {
+        lastPage = -2;
+        window = 0;
+        next = 0;
+        hops = 0;
+    }
+
+    /**
+     * Record that page {@code pageNumber} of the file is about to be read.
+     *
+     * @param numPages number of pages in the file, nothing beyond it is read ahead
+     */
+    public void access(int pageNumber, int numPages) {
+        boolean sequential = pageNumber == lastPage + 1;
+        lastPage = pageNumber;
+        if (!sequential) {
+            window = 0;
+            next = pageNumber + 1;
+            return;
+        }
+        BufferPool pool = Database.getBufferPool();
+        next = Math.max(next, pageNumber + 1);
+        int ahead = next - pageNumber - 1;
+        if (window > 0 && ahead > window / 2) {
+            return;
+        }
+        window = grow(pool);
+        int count = Math.min(window - ahead, numPages - next);
+        if (count <= 0) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            pids.add(pageIdOf.apply(next + i));
+        }
+        next += count;
+        pool.prefetch(pids, ring);
+    }
+
+    /**
+     * Record that a scan followed a link to page {@code pid} and read it.
+     * Pages further down the chain are read ahead by following {@code link}
+     * in the background.
+     *
+     * @param link returns the id of the page after the given one, or null at
+     *     the end of the chain
+     */
+    public void follow(PageId pid, Function<Page,PageId> link) {
+        hops++;
+        if (window > 0 && hops <= window / 2) {
+            return;
+        }
+        BufferPool pool = Database.getBufferPool();
+        window = grow(pool);
+        if (window > 0) {
+            hops = 0;
+            pool.prefetchChain(pid, window + 1, link);
+        }
+    }
+
+    private int grow(BufferPool pool) {
+        int max = pool.getMaxReadAheadPages();
+        return window == 0 ? Math.min(INITIAL_WINDOW, max) : Math.min(window * 2, max);
+    }
+}
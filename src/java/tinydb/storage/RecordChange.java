@@ -0,0 +1,48 @@
+package tinydb.storage;
+
+import tinydb.common.DbException;
+
+/**
+ * A row inserted into or deleted from a record-locked HeapPage by a running
+ * transaction.
+ * <p>
+ * 行级锁下同一个页面上可能有多个未提交事务的修改，所以不能用整页的前像来撤销某一个事务；
+ * 每个事务的修改以行为单位记录下来，中止时按相反顺序逻辑地撤销，提交其他事务时也用它从
+ * 要写盘的页面副本中去掉未提交的行。
+ */
+class RecordChange {
+
+    final RecordId rid;
+    final boolean insert;
+    // a private copy of a deleted row, null for inserts
+    private final Tuple deleted;
+
+    RecordChange(Tuple tuple, boolean insert) {
+        this.rid = tuple.getRecordId();
+        this.insert = insert;
+        this.deleted = insert ? null : copy(tuple);
+    }
+
+    private static Tuple copy(Tuple t) {
+        Tuple c = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            c.setField(i, t.getField(i));
+        }
+        return c;
+    }
+
+    PageId getPageId() {
+        return rid.getPageId();
+    }
+
+    /**
+     * Reverse this change on a page, the live one or a copy of it.
+     */
+    void undo(HeapPage page) throws DbException {
+        if (insert) {
+            page.deleteTuple(rid.getTupleNumber());
+        } else {
+            page.insertTuple(copy(deleted), rid.getTupleNumber());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package tinydb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * 缓冲池的页面置换策略。
+ * <p>
+ * BufferPool 在每次命中或载入页面时调用 {@link #recordAccess}，在页面离开缓冲池时调用
+ * {@link #remove}，在需要腾出空间时调用 {@link #victim} 选出被淘汰的页面。
+ * <p>
+ * Implementations are not thread-safe; the BufferPool serializes all calls.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record a reference to a page, either a hit or a page that was just
+     * brought into the pool.
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * Record a page that was brought into the pool by read-ahead, before
+     * anyone referenced it. By default this counts as a reference.
+     */
+    default void recordPrefetch(PageId pid) {
+        recordAccess(pid);
+    }
+
+    /**
+     * Forget a page that is no longer resident in the pool.
+     */
+    void remove(PageId pid);
+
+    /**
+     * Choose a page to evict. Pages for which {@code evictable} returns false
+     * (e.g. dirty pages) are skipped. The chosen page is removed from the
+     * policy's bookkeeping.
+     *
+     * @return the page to evict, or null if no resident page may be evicted
+     */
+    PageId victim(Predicate<PageId> evictable);
+
+    /**
+     * @return the number of resident pages tracked by this policy
+     */
+    int size();
+}
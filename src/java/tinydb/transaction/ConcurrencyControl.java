@@ -0,0 +1,16 @@
+package tinydb.transaction;
+
+/**
+ * How the buffer pool keeps transactions started with
+ * {@link Transaction#start()} serializable.
+ */
+public enum ConcurrencyControl {
+    /** Strict two-phase locking: every page is locked before it is used. */
+    LOCKING,
+    /**
+     * Optimistic: reads take no locks and writes go to private copies of the
+     * pages; at commit the pages read are validated against the commits made
+     * since, and the transaction aborts if any of them changed.
+     */
+    OPTIMISTIC
+}
@@ -0,0 +1,36 @@
+package tinydb.transaction;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides what happens when a lock request has to wait.
+ * <p>
+ * 锁管理器在请求开始等待时，以及每次被唤醒但仍未获得锁时调用 {@link #resolve}；策略可以让
+ * 请求继续等待、让请求者自己中止（die），或者中止它所等待的事务（wound）。
+ * 基于时间戳的策略把 {@link TransactionId#getId()} 当作事务的年龄：编号越小越老。
+ * <p>
+ * Calls are made while holding the monitor of the lock manager, so
+ * implementations need no synchronization of their own but must not block.
+ *
+ * @see LockManager
+ */
+public interface DeadlockPolicy {
+
+    /**
+     * @param requester the transaction whose request has to wait
+     * @param blockers the transactions it waits for right now
+     * @param graph the current wait-for graph of the lock manager
+     * @return the transactions to abort: the requester itself if it must
+     *     give up, and/or some of the blockers; empty to keep waiting
+     */
+    Collection<TransactionId> resolve(TransactionId requester, List<TransactionId> blockers, WaitForGraph graph);
+
+    /**
+     * @return how long one request may wait before its transaction is
+     *     aborted, in ms, or 0 to wait as long as the policy allows
+     */
+    default long maxWaitMillis() {
+        return 0;
+    }
+}
@@ -0,0 +1,88 @@
+package tinydb.transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Deadlock detection: a request waits until it is granted, unless waiting
+ * would close a cycle in the wait-for graph. Then one transaction of the
+ * cycle is aborted.
+ * <p>
+ * 新的环只可能在某个请求开始等待时出现，所以从这个请求出发做一次深度优先搜索就能找到所有死锁；
+ * 不在环上的事务不会被中止，等多久都可以。
+ */
+public class DetectingDeadlockPolicy implements DeadlockPolicy {
+
+    /**
+     * How the transaction to abort is chosen among the members of a cycle.
+     */
+    public enum Victim {
+        /** Abort the transaction that started last; it has likely done the least work. */
+        YOUNGEST,
+        /** Abort the transaction holding the fewest locks. */
+        FEWEST_LOCKS
+    }
+
+    private final Victim victim;
+
+    public DetectingDeadlockPolicy() {
+        this(Victim.YOUNGEST);
+    }
+
+    public DetectingDeadlockPolicy(Victim victim) {
+        this.victim = victim;
+    }
+
+    @Override
+    public Collection<TransactionId> resolve(TransactionId requester, List<TransactionId> blockers,
+                                             WaitForGraph graph) {
+        List<TransactionId> cycle = new ArrayList<>();
+        cycle.add(requester);
+        Set<TransactionId> visited = new HashSet<>();
+        visited.add(requester);
+        for (TransactionId next : blockers) {
+            if (next.equals(requester) || findPath(next, requester, graph, visited, cycle)) {
+                return Collections.singletonList(chooseVictim(cycle, graph));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Depth-first search for a path of waits from {@code from} to {@code target}.
+     *
+     * @param path filled with the transactions on the path, starting at from
+     */
+    private boolean findPath(TransactionId from, TransactionId target, WaitForGraph graph,
+                             Set<TransactionId> visited, List<TransactionId> path) {
+        if (!visited.add(from)) {
+            return false;
+        }
+        path.add(from);
+        for (TransactionId next : graph.waitsFor(from)) {
+            if (next.equals(target) || findPath(next, target, graph, visited, path)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle, WaitForGraph graph) {
+        TransactionId chosen = cycle.get(0);
+        for (TransactionId tid : cycle) {
+            if (victim == Victim.YOUNGEST) {
+                if (tid.getId() > chosen.getId()) {
+                    chosen = tid;
+                }
+            } else if (graph.lockCount(tid) < graph.lockCount(chosen)) {
+                chosen = tid;
+            }
+        }
+        return chosen;
+    }
+}
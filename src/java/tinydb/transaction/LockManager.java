@@ -0,0 +1,419 @@
+package tinydb.transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 锁表。
+ * <p>
+ * 每个被加锁的资源（例如 PageId）对应一个队列，记录已经授予的锁和按到达顺序（FIFO）排队等待的
+ * 请求。与已授予的锁相容且前面没有人排队的请求立即授予；否则请求进入队尾，线程在锁表的监视器上
+ * 休眠，直到释放锁的一方把锁授予它。锁升级（持有共享锁的事务请求排他锁）排在所有普通等待者
+ * 之前，避免升级者被后来的读者饿死。
+ * <p>
+ * 死锁处理：等待图（wait-for graph）不单独存储，而是由锁表推导出来——一个等待中的请求等待
+ * 与它不相容的持有者，以及排在它前面且与它不相容的等待者。请求开始等待时，以及每次被唤醒但
+ * 仍未获得锁时，锁表把它当前等待的事务交给 {@link DeadlockPolicy}，由策略决定继续等待、让
+ * 请求者中止，还是中止别的事务。被中止的事务如果正在等待，它的等待以
+ * TransactionAbortedException 结束；否则它下一次请求锁时失败。默认的
+ * {@link DetectingDeadlockPolicy} 只在出现环时中止环上的一个事务。
+ * <p>
+ * All state is guarded by the monitor of the lock manager, so a waiter that
+ * dies (e.g. Thread.stop) still removes its request on the way out.
+ */
+public class LockManager {
+
+    private static class Request {
+        final TransactionId tid;
+        final Object resource;
+        final LockMode mode;
+        // true for an upgrade of a lock tid already holds
+        final boolean upgrade;
+        boolean granted = false;
+        // set when the deadlock policy aborted the waiting transaction
+        boolean aborted = false;
+
+        Request(TransactionId tid, Object resource, LockMode mode, boolean upgrade) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    private static class LockQueue {
+        // tid -> mode of the lock it holds
+        final Map<TransactionId,LockMode> granted = new HashMap<>();
+        final LinkedList<Request> waiting = new LinkedList<>();
+
+        boolean isEmpty() {
+            return granted.isEmpty() && waiting.isEmpty();
+        }
+
+        /**
+         * @return true if req can be granted next to the current holders; the
+         *     lock req's transaction already holds does not count
+         */
+        boolean compatible(Request req) {
+            for (Map.Entry<TransactionId,LockMode> e : granted.entrySet()) {
+                if (!e.getKey().equals(req.tid) && !e.getValue().compatibleWith(req.mode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<Object,LockQueue> table = new HashMap<>();
+    // resources each transaction holds a lock on
+    private final Map<TransactionId,Set<Object>> held = new HashMap<>();
+    // the request each transaction is waiting on
+    private final Map<TransactionId,Request> waiting = new HashMap<>();
+    // transactions the policy aborted while they were not waiting
+    private final Set<TransactionId> wounded = new HashSet<>();
+    private DeadlockPolicy policy = new DetectingDeadlockPolicy();
+    private final LockProfiler profiler = new LockProfiler();
+    private long policyAborts = 0;
+
+    private final WaitForGraph graph = new WaitForGraph() {
+        @Override
+        public List<TransactionId> waitsFor(TransactionId tid) {
+            Request blocked = waiting.get(tid);
+            return blocked == null ? Collections.emptyList() : LockManager.this.waitsFor(blocked);
+        }
+
+        @Override
+        public int lockCount(TransactionId tid) {
+            return LockManager.this.lockCount(tid);
+        }
+    };
+
+    public synchronized void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    public LockProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return the number of transactions the deadlock policy aborted so far
+     */
+    public synchronized long getDeadlockCount() {
+        return policyAborts;
+    }
+
+    /**
+     * Lock a resource, waiting until the lock can be granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param resource the locked object, compared with equals()
+     * @param mode the requested mode; if tid already holds a lock on the
+     *     resource, the lock is upgraded to the join of both modes
+     * @return true if tid held no lock on the resource before
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    public synchronized boolean acquire(TransactionId tid, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        LockQueue q = table.computeIfAbsent(resource, r -> new LockQueue());
+        LockMode current = q.granted.get(tid);
+        if (current != null) {
+            if (current.covers(mode)) {
+                return false;
+            }
+            mode = current.join(mode);
+        }
+
+        Request req = new Request(tid, resource, mode, current != null);
+        if (req.upgrade) {
+            if (q.compatible(req)) {
+                grant(q, req, resource);
+                profiler.acquired(resource);
+                return false;
+            }
+            // upgrades go ahead of every ordinary waiter
+            ListIterator<Request> it = q.waiting.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(req);
+            // the waiters behind it wait for tid now, let them consult the policy again
+            notifyAll();
+        } else {
+            if (q.waiting.isEmpty() && q.compatible(req)) {
+                grant(q, req, resource);
+                profiler.acquired(resource);
+                return true;
+            }
+            q.waiting.addLast(req);
+        }
+        await(q, req, resource);
+        return !req.upgrade;
+    }
+
+    /**
+     * Lock a resource only if that is possible without waiting.
+     *
+     * @return true if tid holds the lock in the requested mode now
+     */
+    public synchronized boolean tryAcquire(TransactionId tid, Object resource, LockMode mode) {
+        LockQueue q = table.computeIfAbsent(resource, r -> new LockQueue());
+        LockMode current = q.granted.get(tid);
+        if (current != null) {
+            if (current.covers(mode)) {
+                return true;
+            }
+            mode = current.join(mode);
+        }
+        Request req = new Request(tid, resource, mode, current != null);
+        if ((req.upgrade || q.waiting.isEmpty()) && q.compatible(req)) {
+            grant(q, req, resource);
+            profiler.acquired(resource);
+            return true;
+        }
+        if (q.isEmpty()) {
+            table.remove(resource);
+        }
+        return false;
+    }
+
+    private void await(LockQueue q, Request req, Object resource) throws TransactionAbortedException {
+        waiting.put(req.tid, req);
+        long start = System.nanoTime();
+        long maxWait = policy.maxWaitMillis();
+        long deadline = System.currentTimeMillis() + maxWait;
+        try {
+            resolve(req);
+            while (!req.granted) {
+                if (req.aborted) {
+                    throw new TransactionAbortedException();
+                }
+                if (maxWait == 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        policyAborts++;
+                        throw new TransactionAbortedException();
+                    }
+                    wait(left);
+                }
+                if (!req.granted && !req.aborted) {
+                    // the transactions req waits for may have changed
+                    resolve(req);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            waiting.remove(req.tid, req);
+            if (!req.granted) {
+                dequeue(q, req);
+            }
+            profiler.waited(resource, System.nanoTime() - start, req.granted);
+        }
+    }
+
+    /**
+     * Ask the deadlock policy about the waiting request req and abort the
+     * transactions it returns.
+     *
+     * @throws TransactionAbortedException if req's transaction has to give up
+     */
+    private void resolve(Request req) throws TransactionAbortedException {
+        List<TransactionId> blockers = waitsFor(req);
+        if (blockers.isEmpty()) {
+            return;
+        }
+        boolean self = false;
+        for (TransactionId victim : policy.resolve(req.tid, blockers, graph)) {
+            if (victim.equals(req.tid)) {
+                self = true;
+            } else {
+                abort(victim);
+            }
+        }
+        if (self) {
+            policyAborts++;
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Abort a transaction other than the caller: end its wait if it is
+     * waiting, otherwise fail its next request. Its locks are released when
+     * it aborts.
+     */
+    private void abort(TransactionId victim) {
+        Request victimReq = waiting.get(victim);
+        if (victimReq != null) {
+            if (victimReq.aborted) {
+                return;
+            }
+            victimReq.aborted = true;
+            // its place in the queue can be given up now
+            dequeue(table.get(victimReq.resource), victimReq);
+            notifyAll();
+        } else if (!held.containsKey(victim) || !wounded.add(victim)) {
+            return;
+        }
+        policyAborts++;
+    }
+
+    /**
+     * Take a waiting request out of its queue.
+     */
+    private void dequeue(LockQueue q, Request req) {
+        waiting.remove(req.tid, req);
+        if (!q.waiting.remove(req)) {
+            return;
+        }
+        // requests queued behind this one may be grantable now
+        grantWaiters(q, req.resource);
+        if (q.isEmpty()) {
+            table.remove(req.resource);
+        }
+    }
+
+    /**
+     * @return the transactions the waiting request req waits for
+     */
+    private List<TransactionId> waitsFor(Request req) {
+        List<TransactionId> result = new ArrayList<>();
+        LockQueue q = table.get(req.resource);
+        if (q == null) {
+            return result;
+        }
+        for (Map.Entry<TransactionId,LockMode> e : q.granted.entrySet()) {
+            if (!e.getKey().equals(req.tid) && !e.getValue().compatibleWith(req.mode)) {
+                result.add(e.getKey());
+            }
+        }
+        for (Request ahead : q.waiting) {
+            if (ahead == req) {
+                break;
+            }
+            if (!ahead.tid.equals(req.tid) && !ahead.mode.compatibleWith(req.mode)) {
+                result.add(ahead.tid);
+            }
+        }
+        return result;
+    }
+
+    private int lockCount(TransactionId tid) {
+        Set<Object> resources = held.get(tid);
+        return resources == null ? 0 : resources.size();
+    }
+
+    private void grant(LockQueue q, Request req, Object resource) {
+        q.granted.put(req.tid, req.mode);
+        req.granted = true;
+        // the waiter may not run for a while, but it no longer waits
+        waiting.remove(req.tid, req);
+        held.computeIfAbsent(req.tid, t -> new HashSet<>()).add(resource);
+    }
+
+    /**
+     * Grant waiting requests in FIFO order, stopping at the first one that
+     * conflicts with the current holders.
+     */
+    private void grantWaiters(LockQueue q, Object resource) {
+        boolean granted = false;
+        while (!q.waiting.isEmpty() && q.compatible(q.waiting.peekFirst())) {
+            grant(q, q.waiting.removeFirst(), resource);
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Release the lock tid holds on a resource.
+     *
+     * @return false if tid did not hold a lock on it
+     */
+    public synchronized boolean release(TransactionId tid, Object resource) {
+        Set<Object> resources = held.get(tid);
+        if (resources != null) {
+            resources.remove(resource);
+            if (resources.isEmpty()) {
+                held.remove(tid);
+            }
+        }
+        return releaseLock(tid, resource);
+    }
+
+    /**
+     * Release every lock held by tid.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        wounded.remove(tid);
+        Set<Object> resources = held.remove(tid);
+        if (resources == null) {
+            return;
+        }
+        for (Object resource : resources) {
+            releaseLock(tid, resource);
+        }
+    }
+
+    private boolean releaseLock(TransactionId tid, Object resource) {
+        LockQueue q = table.get(resource);
+        if (q == null || q.granted.remove(tid) == null) {
+            return false;
+        }
+        grantWaiters(q, resource);
+        if (q.isEmpty()) {
+            table.remove(resource);
+        }
+        return true;
+    }
+
+    public synchronized boolean holdsLock(TransactionId tid, Object resource) {
+        LockQueue q = table.get(resource);
+        return q != null && q.granted.containsKey(tid);
+    }
+
+    /**
+     * @return the mode of the lock tid holds on a resource, or null
+     */
+    public synchronized LockMode heldMode(TransactionId tid, Object resource) {
+        LockQueue q = table.get(resource);
+        return q == null ? null : q.granted.get(tid);
+    }
+
+    /**
+     * @return a copy of the resources of the given class tid holds a lock on
+     */
+    public synchronized <T> List<T> lockedResources(TransactionId tid, Class<T> type) {
+        List<T> result = new ArrayList<>();
+        Set<Object> resources = held.get(tid);
+        if (resources != null) {
+            for (Object resource : resources) {
+                if (type.isInstance(resource)) {
+                    result.add(type.cast(resource));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package tinydb.transaction;
+
+/**
+ * Modes in which a transaction can lock a resource.
+ * <p>
+ * 意向锁（IS/IX/SIX）只加在表这一级，表示事务在表内的页面上持有（或将要持有）共享锁或排他锁；
+ * 页面上只使用 SHARED 和 EXCLUSIVE。
+ */
+public enum LockMode {
+    /** Intends to read some pages of a table. */
+    INTENTION_SHARED,
+    /** Intends to write some pages of a table. */
+    INTENTION_EXCLUSIVE,
+    /** Read access, compatible with other shared locks. */
+    SHARED,
+    /** Reads the whole table and intends to write some of its pages. */
+    SHARED_INTENTION_EXCLUSIVE,
+    /** Write access, compatible with nothing. */
+    EXCLUSIVE;
+
+    // indexed by ordinal, in declaration order
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    private static final boolean[][] COVERS = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  false, false, false, false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  true,  true,  true,  false },
+        /* X   */ { true,  true,  true,  true,  true  },
+    };
+
+    /**
+     * @return true if a lock in this mode and a lock in mode {@code other}
+     *     can be held by two transactions at the same time
+     */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode already grants everything
+     *     {@code other} grants
+     */
+    public boolean covers(LockMode other) {
+        return COVERS[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that grants everything this mode and
+     *     {@code other} grant, i.e. the mode a lock is upgraded to
+     */
+    public LockMode join(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // the only incomparable pair is S and IX
+        return SHARED_INTENTION_EXCLUSIVE;
+    }
+}
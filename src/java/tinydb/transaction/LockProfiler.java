@@ -0,0 +1,293 @@
+package tinydb.transaction;
+
+import tinydb.storage.PageId;
+import tinydb.storage.RecordId;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lock acquisition and wait statistics of a {@link LockManager}, per page,
+ * per table and in total.
+ * <p>
+ * 计数器使用 LongAdder / LongAccumulator，按资源分别存放在 ConcurrentHashMap 里：记录一次加锁
+ * 只是一次哈希查找加几次分段计数，不需要任何全局锁，可以在生产环境中一直开着。
+ * 页锁计入所在页面和所在表；表锁和记录锁只计入所在表。
+ * <p>
+ * A page gets its own counters the first time a request for it waits, and
+ * only acquisitions from then on are counted for the page. Pages that are
+ * never contended show up in their table's counters only, which keeps a
+ * scan of a large table from leaving one entry behind per page.
+ */
+public class LockProfiler implements LockProfilerMBean {
+
+    public static final String OBJECT_NAME = "tinydb:type=LockProfiler";
+
+    /**
+     * Counters of one page, one table, or of everything.
+     */
+    public static final class Stats {
+        private final Object key;
+        private final LongAdder acquisitions = new LongAdder();
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+        Stats(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the PageId, the table id, or "total"
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        /** @return the number of locks granted */
+        public long getAcquisitions() {
+            return acquisitions.sum();
+        }
+
+        /** @return the number of requests that had to wait, granted or not */
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        public long getTotalWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        private void waited(long nanos) {
+            waits.increment();
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulate(nanos);
+        }
+
+        /**
+         * @return the counters without the key
+         */
+        public String countersToString() {
+            return String.format("acquisitions=%d waits=%d totalWaitMs=%.3f maxWaitMs=%.3f",
+                    getAcquisitions(), getWaits(), getTotalWaitNanos() / 1e6, getMaxWaitNanos() / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            String label;
+            if (key instanceof PageId) {
+                PageId pid = (PageId) key;
+                label = "table " + pid.getTableId() + " page " + pid.getPageNumber();
+            } else if (key instanceof Integer) {
+                label = "table " + key;
+            } else {
+                label = key.toString();
+            }
+            return label + " " + countersToString();
+        }
+    }
+
+    private static final Comparator<Stats> BY_WAIT =
+            Comparator.comparingLong(Stats::getTotalWaitNanos).thenComparingLong(Stats::getWaits);
+
+    private final ConcurrentHashMap<PageId,Stats> pages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer,Stats> tables = new ConcurrentHashMap<>();
+    private volatile Stats total = new Stats("total");
+    private volatile boolean enabled = true;
+
+    /**
+     * Record a lock that was granted without waiting.
+     */
+    void acquired(Object resource) {
+        if (!enabled) {
+            return;
+        }
+        total.acquisitions.increment();
+        Stats page = resource instanceof PageId ? pages.get(resource) : null;
+        if (page != null) {
+            page.acquisitions.increment();
+        }
+        Stats table = tableStats(resource);
+        if (table != null) {
+            table.acquisitions.increment();
+        }
+    }
+
+    /**
+     * Record a request that waited, whether or not it was granted in the end.
+     */
+    void waited(Object resource, long nanos, boolean granted) {
+        if (!enabled) {
+            return;
+        }
+        Stats[] all = { total, pageStats(resource), tableStats(resource) };
+        for (Stats s : all) {
+            if (s != null) {
+                s.waited(nanos);
+                if (granted) {
+                    s.acquisitions.increment();
+                }
+            }
+        }
+    }
+
+    private Stats pageStats(Object resource) {
+        if (!(resource instanceof PageId)) {
+            return null;
+        }
+        PageId pid = (PageId) resource;
+        Stats s = pages.get(pid);
+        return s != null ? s : pages.computeIfAbsent(pid, Stats::new);
+    }
+
+    private Stats tableStats(Object resource) {
+        int tableId;
+        if (resource instanceof PageId) {
+            tableId = ((PageId) resource).getTableId();
+        } else if (resource instanceof TableLockId) {
+            tableId = ((TableLockId) resource).getTableId();
+        } else if (resource instanceof RecordId) {
+            tableId = ((RecordId) resource).getPageId().getTableId();
+        } else {
+            return null;
+        }
+        Stats s = tables.get(tableId);
+        return s != null ? s : tables.computeIfAbsent(tableId, Stats::new);
+    }
+
+    public Stats getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the statistics of a table, or null if none of its locks was requested
+     */
+    public Stats getTable(int tableId) {
+        return tables.get(tableId);
+    }
+
+    /**
+     * @return the statistics of a page, or null if it was never waited for
+     */
+    public Stats getPage(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /**
+     * @return the statistics of every table, most waited for first
+     */
+    public List<Stats> getTables() {
+        List<Stats> result = new ArrayList<>(tables.values());
+        result.sort(BY_WAIT.reversed());
+        return result;
+    }
+
+    /**
+     * @return the n pages with the longest total lock wait, longest first;
+     *     pages that were never waited for are left out
+     */
+    public List<Stats> getTopContendedPages(int n) {
+        PriorityQueue<Stats> top = new PriorityQueue<>(BY_WAIT);
+        for (Stats s : pages.values()) {
+            if (s.getWaits() == 0) {
+                continue;
+            }
+            top.add(s);
+            if (top.size() > n) {
+                top.poll();
+            }
+        }
+        List<Stats> result = new ArrayList<>(top);
+        result.sort(BY_WAIT.reversed());
+        return result;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getAcquisitionCount() {
+        return total.getAcquisitions();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return total.getWaits();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return total.getTotalWaitNanos() / 1_000_000;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return total.getMaxWaitNanos() / 1_000_000;
+    }
+
+    @Override
+    public String[] getTableStatistics() {
+        return toLines(getTables());
+    }
+
+    @Override
+    public String[] topContendedPages(int n) {
+        return toLines(getTopContendedPages(n));
+    }
+
+    private static String[] toLines(List<Stats> stats) {
+        String[] lines = new String[stats.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = stats.get(i).toString();
+        }
+        return lines;
+    }
+
+    /**
+     * Forget all statistics. Counts of requests in progress may be lost.
+     */
+    @Override
+    public void reset() {
+        pages.clear();
+        tables.clear();
+        total = new Stats("total");
+    }
+
+    /**
+     * Make this profiler the one registered with the platform MBean server
+     * under {@value #OBJECT_NAME}, replacing any previous one.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package tinydb.transaction;
+
+/**
+ * JMX view of a {@link LockProfiler}, registered as
+ * {@value LockProfiler#OBJECT_NAME}.
+ */
+public interface LockProfilerMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getAcquisitionCount();
+
+    long getWaitCount();
+
+    long getTotalWaitMillis();
+
+    long getMaxWaitMillis();
+
+    /**
+     * @return one line of statistics per table
+     */
+    String[] getTableStatistics();
+
+    /**
+     * @return one line of statistics for each of the n pages with the
+     *     longest total lock wait
+     */
+    String[] topContendedPages(int n);
+
+    void reset();
+}
@@ -0,0 +1,35 @@
+package tinydb.transaction;
+
+/**
+ * Names a whole table in the lock table, next to the PageIds of its pages.
+ */
+public class TableLockId {
+
+    private final int tableId;
+
+    /**
+     * @param tableId the id of the table's DbFile, see DbFile.getId()
+     */
+    public TableLockId(int tableId) {
+        this.tableId = tableId;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TableLockId && ((TableLockId) o).tableId == tableId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(tableId) * 31 + 7;
+    }
+
+    @Override
+    public String toString() {
+        return "table " + tableId;
+    }
+}
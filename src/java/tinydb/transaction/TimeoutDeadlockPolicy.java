@@ -0,0 +1,46 @@
+package tinydb.transaction;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A request that waits longer than a randomized timeout gives up. This
+ * breaks deadlocks without looking for them, at the price of waiting the
+ * whole timeout and of aborting long waiters that were not deadlocked.
+ */
+public class TimeoutDeadlockPolicy implements DeadlockPolicy {
+
+    /** Shortest time a request waits before its transaction is aborted, in ms. */
+    public static final long DEFAULT_MIN_WAIT_MILLIS = 1000;
+
+    /** Random extra wait, so that deadlocked transactions do not all give up at once. */
+    public static final long DEFAULT_WAIT_JITTER_MILLIS = 2000;
+
+    private final long minWaitMillis;
+    private final long jitterMillis;
+
+    public TimeoutDeadlockPolicy() {
+        this(DEFAULT_MIN_WAIT_MILLIS, DEFAULT_WAIT_JITTER_MILLIS);
+    }
+
+    public TimeoutDeadlockPolicy(long minWaitMillis, long jitterMillis) {
+        if (minWaitMillis < 1 || jitterMillis < 0) {
+            throw new IllegalArgumentException("invalid lock wait timeout");
+        }
+        this.minWaitMillis = minWaitMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    @Override
+    public Collection<TransactionId> resolve(TransactionId requester, List<TransactionId> blockers,
+                                             WaitForGraph graph) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public long maxWaitMillis() {
+        return minWaitMillis + (jitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitterMillis));
+    }
+}
@@ -12,12 +12,17 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean readOnly = false;
+    private volatile boolean synchronousCommit = true;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
-    /** Start the transaction running */
+    /**
+     * Start the transaction running, under the concurrency control the
+     * buffer pool is set to, see {@link ConcurrencyControl}
+     */
     public void start() {
         started = true;
         try {
@@ -25,6 +30,36 @@ public class Transaction {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        Database.getBufferPool().beginTransaction(tid);
+    }
+
+    /**
+     * Start the transaction as a reader of a snapshot of the committed
+     * database: its reads take no locks, see nothing committed after this
+     * call, and its writes fail. Nothing is logged for it.
+     */
+    public void startReadOnly() {
+        readOnly = true;
+        started = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * With synchronousCommit false, {@link #commit()} returns once the commit
+     * record is appended to the log instead of once it is on disk. A crash
+     * within the log's asynchronous commit delay after that may roll the
+     * transaction back, but never leaves it half applied.
+     */
+    public void setSynchronousCommit(boolean synchronousCommit) {
+        this.synchronousCommit = synchronousCommit;
+    }
+
+    public boolean isSynchronousCommit() {
+        return synchronousCommit;
     }
 
     public TransactionId getId() {
@@ -44,18 +79,33 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException, TransactionAbortedException, DbException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing to log, undo or flush
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
+            if (!abort) {
+                try {
+                    // an optimistic transaction is validated here
+                    Database.getBufferPool().prepareCommit(tid);
+                } catch (TransactionAbortedException | DbException e) {
+                    transactionComplete(true);
+                    throw e;
+                }
+            }
+
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            // Release locks and flush pages if needed; the commit log record
+            // is appended before the locks are released
+            Database.getBufferPool().transactionComplete(tid, !abort, true); // release locks
 
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+            // wait for the commit log record to reach the disk
+            if (!abort && synchronousCommit) {
+                Database.getLogFile().force();
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
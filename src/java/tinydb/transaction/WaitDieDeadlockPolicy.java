@@ -0,0 +1,24 @@
+package tinydb.transaction;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wait-die deadlock prevention: an older transaction may wait for a younger
+ * one, a younger transaction that would wait for an older one aborts
+ * ("dies") at once. Waits only go from old to young, so there are no cycles.
+ */
+public class WaitDieDeadlockPolicy implements DeadlockPolicy {
+
+    @Override
+    public Collection<TransactionId> resolve(TransactionId requester, List<TransactionId> blockers,
+                                             WaitForGraph graph) {
+        for (TransactionId blocker : blockers) {
+            if (blocker.getId() < requester.getId()) {
+                return Collections.singletonList(requester);
+            }
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,20 @@
+package tinydb.transaction;
+
+import java.util.List;
+
+/**
+ * Read-only view of who waits for whom in a lock manager, for use by a
+ * {@link DeadlockPolicy}.
+ */
+public interface WaitForGraph {
+
+    /**
+     * @return the transactions tid waits for, empty if tid is not waiting
+     */
+    List<TransactionId> waitsFor(TransactionId tid);
+
+    /**
+     * @return the number of locks tid holds
+     */
+    int lockCount(TransactionId tid);
+}
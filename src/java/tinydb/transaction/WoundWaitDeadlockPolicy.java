@@ -0,0 +1,28 @@
+package tinydb.transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wound-wait deadlock prevention: an older transaction aborts ("wounds")
+ * the younger transactions it would wait for, a younger transaction waits
+ * for an older one. Waits only go from young to old, so there are no cycles.
+ * <p>
+ * 被伤害的事务如果正在等待锁，它的等待立即以 TransactionAbortedException 结束；否则在它下一次
+ * 请求锁时中止。
+ */
+public class WoundWaitDeadlockPolicy implements DeadlockPolicy {
+
+    @Override
+    public Collection<TransactionId> resolve(TransactionId requester, List<TransactionId> blockers,
+                                             WaitForGraph graph) {
+        List<TransactionId> wounded = new ArrayList<>();
+        for (TransactionId blocker : blockers) {
+            if (blocker.getId() > requester.getId()) {
+                wounded.add(blocker);
+            }
+        }
+        return wounded;
+    }
+}
@@ -0,0 +1,254 @@
+package tinydb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tinydb.transaction.DetectingDeadlockPolicy;
+import tinydb.transaction.LockManager;
+import tinydb.transaction.LockMode;
+import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
+import tinydb.transaction.WaitDieDeadlockPolicy;
+import tinydb.transaction.WoundWaitDeadlockPolicy;
+
+public class LockManagerTest {
+
+    /** Time to let a waiter reach the lock queue, in ms */
+    private static final int TIMEOUT = 100;
+
+    private static final String R = "resource";
+
+    private LockManager lm;
+    private List<TransactionId> grantOrder;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        grantOrder = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * Start a thread that requests a lock and records when it is granted.
+     */
+    private Thread request(TransactionId tid, LockMode mode) throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, R, mode);
+                grantOrder.add(tid);
+            } catch (TransactionAbortedException e) {
+                // left out of grantOrder
+            }
+        });
+        t.start();
+        Thread.sleep(TIMEOUT);
+        return t;
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): compatible requests are granted
+     * at once, conflicting ones wait for the release.
+     */
+    @Test public void grantOnRelease() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, R, LockMode.SHARED);
+        lm.acquire(t2, R, LockMode.SHARED);
+
+        Thread waiter = request(t3, LockMode.EXCLUSIVE);
+        assertTrue(grantOrder.isEmpty());
+        // a blocked waiter sleeps instead of polling
+        assertEquals(Thread.State.WAITING, waiter.getState());
+
+        lm.release(t1, R);
+        Thread.sleep(TIMEOUT);
+        assertTrue(grantOrder.isEmpty());
+
+        lm.release(t2, R);
+        waiter.join();
+        assertEquals(Arrays.asList(t3), grantOrder);
+        assertEquals(LockMode.EXCLUSIVE, lm.heldMode(t3, R));
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): a shared request does not jump
+     * ahead of an exclusive request that is already waiting.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        lm.acquire(t1, R, LockMode.SHARED);
+
+        Thread w = request(writer, LockMode.EXCLUSIVE);
+        Thread r = request(reader, LockMode.SHARED);
+        assertTrue(grantOrder.isEmpty());
+
+        lm.release(t1, R);
+        w.join();
+        assertEquals(Arrays.asList(writer), grantOrder);
+        assertFalse(lm.holdsLock(reader, R));
+
+        lm.releaseAll(writer);
+        r.join();
+        assertEquals(Arrays.asList(writer, reader), grantOrder);
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): a waiting upgrade is granted
+     * before requests that were queued earlier.
+     */
+    @Test public void upgradeFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquire(t1, R, LockMode.SHARED);
+        lm.acquire(t2, R, LockMode.SHARED);
+
+        Thread w = request(writer, LockMode.EXCLUSIVE);
+        Thread up = request(t1, LockMode.EXCLUSIVE);
+        assertTrue(grantOrder.isEmpty());
+
+        lm.release(t2, R);
+        up.join();
+        assertEquals(Arrays.asList(t1), grantOrder);
+        assertEquals(LockMode.EXCLUSIVE, lm.heldMode(t1, R));
+
+        lm.releaseAll(t1);
+        w.join();
+        assertEquals(Arrays.asList(t1, writer), grantOrder);
+    }
+
+    /**
+     * Unit test for LockManager deadlock detection: the youngest transaction
+     * of a cycle is aborted at once, and its place in the queue is freed.
+     */
+    @Test public void abortYoungest() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, "a", LockMode.EXCLUSIVE);
+        lm.acquire(t2, R, LockMode.EXCLUSIVE);
+
+        Thread older = request(t1, LockMode.SHARED);
+        try {
+            lm.acquire(t2, "a", LockMode.SHARED);
+            throw new AssertionError("t2 should have been aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getDeadlockCount());
+        assertFalse(lm.holdsLock(t2, "a"));
+
+        lm.releaseAll(t2);
+        older.join();
+        assertEquals(Arrays.asList(t1), grantOrder);
+    }
+
+    /**
+     * Unit test for LockManager deadlock detection: with FEWEST_LOCKS, a
+     * waiting transaction other than the requester can be the victim.
+     */
+    @Test public void abortFewestLocks() throws Exception {
+        lm.setDeadlockPolicy(new DetectingDeadlockPolicy(DetectingDeadlockPolicy.Victim.FEWEST_LOCKS));
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, "a", LockMode.EXCLUSIVE);
+        lm.acquire(t2, R, LockMode.EXCLUSIVE);
+        lm.acquire(t2, "b", LockMode.EXCLUSIVE);
+
+        Thread victim = request(t1, LockMode.SHARED);
+        Thread survivor = new Thread(() -> {
+            try {
+                lm.acquire(t2, "a", LockMode.SHARED);
+                grantOrder.add(t2);
+            } catch (TransactionAbortedException e) {
+                // not expected, shows up as a missing grant
+            }
+        });
+        survivor.start();
+        victim.join();
+        assertTrue(grantOrder.isEmpty());
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(t1);
+        survivor.join();
+        assertEquals(Arrays.asList(t2), grantOrder);
+    }
+
+    /**
+     * Unit test for wait-die: a younger transaction that would wait for an
+     * older one aborts at once, an older one waits for a younger one.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(new WaitDieDeadlockPolicy());
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, R, LockMode.EXCLUSIVE);
+        lm.acquire(younger, "a", LockMode.EXCLUSIVE);
+        try {
+            lm.acquire(younger, R, LockMode.SHARED);
+            throw new AssertionError("younger should have died");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(older);
+        lm.acquire(younger, R, LockMode.EXCLUSIVE);
+        Thread waiter = request(older, LockMode.SHARED);
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        lm.releaseAll(younger);
+        waiter.join();
+        assertEquals(Arrays.asList(older), grantOrder);
+    }
+
+    /**
+     * Unit test for wound-wait: an older transaction aborts the younger one
+     * it would wait for, ending that transaction's own wait.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(new WoundWaitDeadlockPolicy());
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, "a", LockMode.EXCLUSIVE);
+        lm.acquire(younger, R, LockMode.EXCLUSIVE);
+
+        // younger waits for older, which is allowed
+        Thread wounded = new Thread(() -> {
+            try {
+                lm.acquire(younger, "a", LockMode.SHARED);
+                grantOrder.add(younger);
+            } catch (TransactionAbortedException e) {
+                // expected
+            }
+        });
+        wounded.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(Thread.State.WAITING, wounded.getState());
+
+        Thread wounder = request(older, LockMode.SHARED);
+        wounded.join();
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(younger);
+        wounder.join();
+        assertEquals(Arrays.asList(older), grantOrder);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
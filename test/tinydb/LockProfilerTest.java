@@ -0,0 +1,136 @@
+package tinydb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.PageId;
+import tinydb.transaction.LockManager;
+import tinydb.transaction.LockMode;
+import tinydb.transaction.LockProfiler;
+import tinydb.transaction.TableLockId;
+import tinydb.transaction.TransactionId;
+
+public class LockProfilerTest {
+
+    /** Time a waiter is kept waiting, in ms */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private LockProfiler profiler;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        profiler = lm.getProfiler();
+    }
+
+    /**
+     * Lock pid in a new thread, which has to wait until holder releases it
+     * after TIMEOUT.
+     */
+    private void contend(PageId pid, TransactionId holder) throws Exception {
+        TransactionId waiter = new TransactionId();
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(waiter, pid, LockMode.EXCLUSIVE);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        Thread.sleep(TIMEOUT);
+        lm.releaseAll(holder);
+        t.join();
+        lm.releaseAll(waiter);
+    }
+
+    /**
+     * Unit test for LockProfiler: waits are counted for the page, its table
+     * and in total, and table locks count for the table only.
+     */
+    @Test public void countsPerPageAndTable() throws Exception {
+        PageId p0 = new HeapPageId(1, 0);
+        TransactionId t1 = new TransactionId();
+        lm.acquire(t1, new TableLockId(1), LockMode.INTENTION_EXCLUSIVE);
+        lm.acquire(t1, p0, LockMode.EXCLUSIVE);
+        contend(p0, t1);
+
+        // the page is counted from its first wait on
+        LockProfiler.Stats page = profiler.getPage(p0);
+        assertEquals(1, page.getAcquisitions());
+        assertEquals(1, page.getWaits());
+        assertTrue(page.getMaxWaitNanos() >= TIMEOUT * 1_000_000L / 2);
+        assertEquals(page.getMaxWaitNanos(), page.getTotalWaitNanos());
+
+        assertEquals(3, profiler.getTable(1).getAcquisitions());
+        assertEquals(1, profiler.getTable(1).getWaits());
+        assertEquals(3, profiler.getAcquisitionCount());
+        assertNull(profiler.getTable(2));
+    }
+
+    /**
+     * Unit test for LockProfiler.getTopContendedPages(): pages are ordered by
+     * total wait, and pages without waits are left out.
+     */
+    @Test public void topContendedPages() throws Exception {
+        PageId quiet = new HeapPageId(1, 0);
+        PageId warm = new HeapPageId(1, 1);
+        PageId hot = new HeapPageId(2, 0);
+        TransactionId t1 = new TransactionId();
+        lm.acquire(t1, quiet, LockMode.SHARED);
+        lm.acquire(t1, warm, LockMode.SHARED);
+        contend(warm, t1);
+        for (int i = 0; i < 2; i++) {
+            TransactionId t = new TransactionId();
+            lm.acquire(t, hot, LockMode.SHARED);
+            contend(hot, t);
+        }
+
+        List<LockProfiler.Stats> top = profiler.getTopContendedPages(5);
+        assertEquals(2, top.size());
+        assertEquals(hot, top.get(0).getKey());
+        assertEquals(warm, top.get(1).getKey());
+        assertEquals(1, profiler.getTopContendedPages(1).size());
+
+        profiler.reset();
+        assertTrue(profiler.getTopContendedPages(5).isEmpty());
+        assertEquals(0, profiler.getAcquisitionCount());
+    }
+
+    /**
+     * Unit test for the JMX registration: the MBean follows the buffer pool
+     * of the Database.
+     */
+    @Test public void registeredMBean() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LockProfiler.OBJECT_NAME);
+        assertEquals(true, server.getAttribute(name, "Enabled"));
+        bp.getLockProfiler().setEnabled(false);
+        assertEquals(false, server.getAttribute(name, "Enabled"));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(true, server.getAttribute(name, "Enabled"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockProfilerTest.class);
+    }
+}
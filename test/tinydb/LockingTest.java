@@ -3,6 +3,8 @@ package tinydb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 import tinydb.common.Database;
@@ -174,6 +176,38 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming lock escalation.
+   * Read locks on more pages than the threshold become a shared table lock,
+   * which blocks writers of any page of the table but not readers.
+   */
+  @Test public void escalateReadLocks() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p2));
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming lock escalation.
+   * Write locks escalate to an exclusive table lock.
+   */
+  @Test public void escalateWriteLocks() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+
+    bp.transactionComplete(tid1);
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+  }
+
   /**
    * JUnit suite target
    */
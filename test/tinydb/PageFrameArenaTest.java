@@ -0,0 +1,70 @@
+package tinydb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import tinydb.storage.PageFrameArena;
+
+public class PageFrameArenaTest {
+
+    /**
+     * Unit test for PageFrameArena.write() and read()
+     */
+    @Test public void writeRead() {
+        PageFrameArena arena = new PageFrameArena(4, 64);
+        int f0 = arena.allocate();
+        int f1 = arena.allocate();
+        assertNotEquals(f0, f1);
+
+        byte[] a = new byte[64];
+        byte[] b = new byte[20];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = (byte) i;
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) -i;
+        }
+        arena.write(f0, a);
+        arena.write(f1, b);
+        assertArrayEquals(a, arena.read(f0));
+        assertArrayEquals(b, arena.read(f1));
+    }
+
+    /**
+     * Unit test for PageFrameArena.free(): frames are reused, and the arena
+     * refuses to hand out more frames than it has.
+     */
+    @Test public void allocateFree() {
+        PageFrameArena arena = new PageFrameArena(2, 64);
+        int f0 = arena.allocate();
+        arena.allocate();
+        try {
+            arena.allocate();
+            throw new AssertionError("arena should be exhausted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        arena.free(f0);
+        assertEquals(f0, arena.allocate());
+    }
+
+    /**
+     * Unit test for PageFrameArena: oversized pages are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class) public void pageTooLarge() {
+        PageFrameArena arena = new PageFrameArena(1, 64);
+        arena.write(arena.allocate(), new byte[65]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFrameArenaTest.class);
+    }
+}
@@ -0,0 +1,157 @@
+package tinydb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import tinydb.storage.ClockReplacementPolicy;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.LruKReplacementPolicy;
+import tinydb.storage.PageId;
+import tinydb.storage.ReplacementPolicy;
+
+public class ReplacementPolicyTest {
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: referenced pages get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy clock = new ClockReplacementPolicy();
+        for (int i = 0; i < 3; i++) {
+            clock.recordAccess(page(i));
+        }
+        // first sweep clears every reference bit and comes back to page 0
+        assertEquals(page(0), clock.victim(pid -> true));
+
+        // page 1 is referenced again, so page 2 goes before it
+        clock.recordAccess(page(1));
+        assertEquals(page(2), clock.victim(pid -> true));
+        assertEquals(page(1), clock.victim(pid -> true));
+        assertEquals(0, clock.size());
+        assertNull(clock.victim(pid -> true));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: pages that may not be evicted are skipped.
+     */
+    @Test public void clockSkipsPinned() {
+        ReplacementPolicy clock = new ClockReplacementPolicy();
+        for (int i = 0; i < 4; i++) {
+            clock.recordAccess(page(i));
+        }
+        clock.remove(page(3));
+        assertEquals(3, clock.size());
+
+        assertEquals(page(2), clock.victim(pid -> pid.getPageNumber() == 2));
+        assertNull(clock.victim(pid -> false));
+
+        // freed slots are reused
+        clock.recordAccess(page(5));
+        assertEquals(3, clock.size());
+    }
+
+    /**
+     * Unit test for LruKReplacementPolicy: pages referenced once go before hot pages.
+     */
+    @Test public void lruKEvictsColdFirst() {
+        ReplacementPolicy lruk = new LruKReplacementPolicy(2, 10);
+        lruk.recordAccess(page(0));
+        lruk.recordAccess(page(0));
+        lruk.recordAccess(page(1));
+        lruk.recordAccess(page(2));
+
+        assertEquals(page(1), lruk.victim(pid -> true));
+        assertEquals(page(2), lruk.victim(pid -> true));
+        assertEquals(page(0), lruk.victim(pid -> true));
+        assertNull(lruk.victim(pid -> true));
+    }
+
+    /**
+     * Unit test for LruKReplacementPolicy: the history of an evicted page is retained.
+     */
+    @Test public void lruKRetainsHistory() {
+        ReplacementPolicy lruk = new LruKReplacementPolicy(2, 10);
+        lruk.recordAccess(page(0));
+        lruk.recordAccess(page(1));
+        assertEquals(page(0), lruk.victim(pid -> true));
+
+        // the second reference to page 0 makes it hot even though it was evicted in between
+        lruk.recordAccess(page(0));
+        lruk.recordAccess(page(2));
+        assertEquals(page(1), lruk.victim(pid -> true));
+        assertEquals(page(2), lruk.victim(pid -> true));
+        assertEquals(page(0), lruk.victim(pid -> true));
+    }
+
+    /**
+     * Unit test for LruKReplacementPolicy: a prefetched page is not hot after its first use.
+     */
+    @Test public void lruKPrefetchIsNotAReference() {
+        ReplacementPolicy lruk = new LruKReplacementPolicy(2, 10);
+        lruk.recordAccess(page(0));
+        lruk.recordAccess(page(0));
+        lruk.recordPrefetch(page(1));
+        lruk.recordAccess(page(1));
+
+        assertEquals(page(1), lruk.victim(pid -> true));
+        assertEquals(page(0), lruk.victim(pid -> true));
+    }
+
+    /**
+     * A pool of 10 frames holding 5 hot pages is hit by a 100 page scan with
+     * point lookups in between. LRU-K keeps every hot page resident, CLOCK does not.
+     */
+    @Test public void mixedLookupScanWorkload() {
+        assertEquals(5, survivingHotPages(new LruKReplacementPolicy(10)));
+        assertTrue(survivingHotPages(new ClockReplacementPolicy()) < 5);
+    }
+
+    private static int survivingHotPages(ReplacementPolicy policy) {
+        int capacity = 10;
+        Set<PageId> resident = new HashSet<>();
+        for (int round = 0; round < 3; round++) {
+            for (int hot = 0; hot < 5; hot++) {
+                access(policy, resident, capacity, page(hot));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            access(policy, resident, capacity, page(1000 + i));
+            if (i % 20 == 0) {
+                access(policy, resident, capacity, page(i % 5));
+            }
+        }
+        int count = 0;
+        for (int hot = 0; hot < 5; hot++) {
+            if (resident.contains(page(hot))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void access(ReplacementPolicy policy, Set<PageId> resident, int capacity, PageId pid) {
+        if (!resident.contains(pid) && resident.size() >= capacity) {
+            resident.remove(policy.victim(p -> true));
+        }
+        resident.add(pid);
+        policy.recordAccess(pid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
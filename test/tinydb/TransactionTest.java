@@ -3,6 +3,7 @@ package tinydb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 import tinydb.common.Database;
 import tinydb.common.Permissions;
@@ -65,6 +66,23 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid2, p0, Permissions.READ_WRITE);
   }
   
+  /**
+   * Unit test for BufferPool.transactionComplete().
+   * Locks on pages that were evicted before the transaction completed must
+   * be released as well.
+   */
+  @Test public void releaseLocksOfEvictedPages() throws Exception {
+    bp = Database.resetBufferPool(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    bp.transactionComplete(tid1, true);
+
+    assertFalse(bp.holdsLock(tid1, p0));
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+  }
+
   public void testTransactionComplete(boolean commit) throws Exception {
     HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
 
@@ -10,6 +10,7 @@ import org.junit.Test;
 import tinydb.common.Database;
 import tinydb.common.DbException;
 import tinydb.common.Utility;
+import tinydb.execution.Delete;
 import tinydb.execution.Insert;
 import tinydb.execution.SeqScan;
 import tinydb.storage.*;
@@ -83,6 +84,52 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    private static int deleteAll(HeapFile f, Transaction t) throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        int deleted = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        return deleted;
+    }
+
+    private static int countRows(HeapFile f, Transaction t) throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int n = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    @Test public void testStealEvictsDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(2).setSteal(true);
+
+        // a transaction changing every page fits into two frames
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(512*10, deleteAll(f, t));
+        assertEquals(0, countRows(f, t));
+        t.transactionComplete(true);
+
+        // the stolen pages are undone on abort
+        t = new Transaction();
+        t.start();
+        assertEquals(512*10, countRows(f, t));
+        assertEquals(512*10, deleteAll(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countRows(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
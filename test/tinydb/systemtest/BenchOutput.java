@@ -0,0 +1,43 @@
+package tinydb.systemtest;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Results of the benchmark mains in this package. Each line is printed and
+ * appended to bench_output.txt in the working directory, prefixed with the
+ * name of the benchmark.
+ */
+final class BenchOutput {
+
+    static final String FILE = "bench_output.txt";
+
+    private BenchOutput() {
+    }
+
+    static void report(String bench, String format, Object... args) throws IOException {
+        String line = bench + ": " + String.format(format, args);
+        System.out.println(line);
+        try (PrintWriter out = new PrintWriter(new FileWriter(FILE, true))) {
+            out.println(line);
+        }
+    }
+
+    /** @return the mean of the samples in microseconds */
+    static double meanMicros(long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total / 1000.0 / nanos.length;
+    }
+
+    /** @return the p-th percentile (0-100) of the samples in microseconds; sorts them */
+    static double percentileMicros(long[] nanos, int p) {
+        Arrays.sort(nanos);
+        int i = Math.min(nanos.length - 1, nanos.length * p / 100);
+        return nanos[i] / 1000.0;
+    }
+}
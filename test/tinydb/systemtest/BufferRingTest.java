@@ -0,0 +1,119 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.DbException;
+import tinydb.common.Utility;
+import tinydb.execution.Insert;
+import tinydb.execution.SeqScan;
+import tinydb.storage.HeapFile;
+import tinydb.storage.IntField;
+import tinydb.storage.Page;
+import tinydb.storage.PageId;
+import tinydb.storage.Tuple;
+import tinydb.storage.TupleIterator;
+import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
+
+/**
+ * Large scans through a BufferRing must not flush the rest of the pool.
+ */
+public class BufferRingTest extends SimpleDbTestBase {
+
+    /** HeapFile that counts the pages it reads. */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(List<PageId> pids) {
+            reads.addAndGet(pids.size());
+            return super.readPages(pids);
+        }
+    }
+
+    private static CountingHeapFile createTable(int pages, List<List<Integer>> tuples) throws IOException {
+        File temp = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1 << 16, null, tuples);
+        CountingHeapFile f = new CountingHeapFile(temp);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+
+    private static void scan(HeapFile f, List<List<Integer>> tuples, boolean useRing)
+            throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.useBufferRing(useRing);
+        SystemTestUtil.matchTuples(scan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int rereadsAfterLargeScan(boolean useRing)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> small = new ArrayList<>();
+        List<List<Integer>> large = new ArrayList<>();
+        CountingHeapFile hot = createTable(4, small);
+        CountingHeapFile big = createTable(60, large);
+        Database.resetBufferPool(20);
+
+        scan(hot, small, false);
+        scan(big, large, useRing);
+        hot.reads.set(0);
+        scan(hot, small, false);
+        return hot.reads.get();
+    }
+
+    @Test public void testLargeScanKeepsPool() throws IOException, DbException, TransactionAbortedException {
+        assertEquals(0, rereadsAfterLargeScan(true));
+        // without a ring the scan flushes the pages read before it
+        assertTrue(rereadsAfterLargeScan(false) > 0);
+    }
+
+    @Test public void testBulkInsert() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        CountingHeapFile f = createTable(30, tuples);
+        Database.resetBufferPool(20);
+
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            rows.add(t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        TransactionId tid = new TransactionId();
+        Insert insert = new Insert(tid, new TupleIterator(Utility.getTupleDesc(2), rows), f.getId());
+        insert.useBufferRing(true);
+        insert.open();
+        assertEquals(600, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        scan(f, tuples, true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
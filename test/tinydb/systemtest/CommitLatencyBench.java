@@ -0,0 +1,98 @@
+package tinydb.systemtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import tinydb.common.Database;
+import tinydb.common.Permissions;
+import tinydb.common.Utility;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPage;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.IntField;
+import tinydb.storage.Tuple;
+import tinydb.transaction.Transaction;
+import tinydb.transaction.TransactionId;
+
+/**
+ * Commit latency of small transactions as the pool grows. The pool is filled
+ * with resident pages first, so that a commit that scans the whole pool
+ * instead of the pages of the transaction shows up as latency growing with
+ * the pool size.
+ * <p>
+ * Usage: CommitLatencyBench [commits per pool size]
+ */
+public class CommitLatencyBench {
+
+    private static final int[] POOL_SIZES = {64, 256, 1024, 4096};
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        // warm up the JIT on the smallest pool
+        run(POOL_SIZES[0], commits, false);
+        for (int pool : POOL_SIZES) {
+            run(pool, commits, true);
+        }
+    }
+
+    private static void run(int pool, int commits, boolean report) throws Exception {
+        Database.reset();
+        HeapFile f = createEmptyTable(pool);
+        BufferPool bp = Database.resetBufferPool(pool);
+
+        // make every frame resident
+        TransactionId fill = new TransactionId();
+        for (int i = 0; i < pool; i++) {
+            bp.getPage(fill, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(fill, true);
+
+        // read one page, then commit: only lock release
+        long[] read = new long[commits];
+        for (int i = 0; i < commits; i++) {
+            TransactionId tid = new TransactionId();
+            bp.getPage(tid, new HeapPageId(f.getId(), i % pool), Permissions.READ_ONLY);
+            long t0 = System.nanoTime();
+            bp.transactionComplete(tid, true);
+            read[i] = System.nanoTime() - t0;
+        }
+
+        // insert one row, then commit: log force and page write as well
+        long[] write = new long[commits / 10];
+        for (int i = 0; i < write.length; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple row = new Tuple(Utility.getTupleDesc(2));
+            row.setField(0, new IntField(i));
+            row.setField(1, new IntField(i));
+            bp.insertTuple(t.getId(), f.getId(), row);
+            long t0 = System.nanoTime();
+            t.commit();
+            write[i] = System.nanoTime() - t0;
+        }
+
+        if (!report) {
+            return;
+        }
+        BenchOutput.report("commit-latency",
+                "pool=%d read-only mean=%.1fus p99=%.1fus one-row-insert mean=%.1fus p99=%.1fus",
+                pool, BenchOutput.meanMicros(read), BenchOutput.percentileMicros(read, 99),
+                BenchOutput.meanMicros(write), BenchOutput.percentileMicros(write, 99));
+    }
+
+    private static HeapFile createEmptyTable(int pages) throws IOException {
+        File file = File.createTempFile("commitbench", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            byte[] empty = HeapPage.createEmptyPageData();
+            for (int i = 0; i < pages; i++) {
+                out.write(empty);
+            }
+        }
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+}
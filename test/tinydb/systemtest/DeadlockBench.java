@@ -0,0 +1,158 @@
+package tinydb.systemtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tinydb.common.Database;
+import tinydb.common.Permissions;
+import tinydb.common.Utility;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPage;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.PageId;
+import tinydb.transaction.DeadlockPolicy;
+import tinydb.transaction.DetectingDeadlockPolicy;
+import tinydb.transaction.TimeoutDeadlockPolicy;
+import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
+
+/**
+ * Deadlock resolution with random timeouts against wait-for graph
+ * detection, on the deadlocks built by DeadlockTest: two readers that both
+ * ask for the other's page in write mode, the same with write locks, and two
+ * readers that both upgrade. For each it reports the time from the closing
+ * request to the first abort and how many of the two transactions were
+ * aborted. A queue of writers on one page that never deadlocks shows how
+ * many innocent waiters each policy aborts.
+ * <p>
+ * Usage: DeadlockBench [rounds per deadlock]
+ */
+public class DeadlockBench {
+
+    private static final int QUEUE_WRITERS = 8;
+    private static final long QUEUE_HOLD_MILLIS = 400;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        DeadlockPolicy[] policies = {new TimeoutDeadlockPolicy(), new DetectingDeadlockPolicy()};
+        for (DeadlockPolicy policy : policies) {
+            Database.reset();
+            Database.setDeadlockPolicy(policy);
+            HeapFile f = createEmptyTable(2);
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            PageId p0 = new HeapPageId(f.getId(), 0);
+            PageId p1 = new HeapPageId(f.getId(), 1);
+            String name = policy.getClass().getSimpleName();
+
+            deadlock(bp, name, "read-write", rounds,
+                    p0, Permissions.READ_ONLY, p1, Permissions.READ_ONLY, p1, p0);
+            deadlock(bp, name, "write-write", rounds,
+                    p0, Permissions.READ_WRITE, p1, Permissions.READ_WRITE, p1, p0);
+            deadlock(bp, name, "upgrade", rounds,
+                    p0, Permissions.READ_ONLY, p0, Permissions.READ_ONLY, p0, p0);
+            queue(bp, name, p0);
+        }
+    }
+
+    /**
+     * t1 takes (first1, perm1) and t2 takes (first2, perm2), then t1 asks
+     * for second1 and t2 for second2 in write mode, each in its own thread.
+     */
+    private static void deadlock(BufferPool bp, String policy, String kind, int rounds,
+            PageId first1, Permissions perm1, PageId first2, Permissions perm2,
+            PageId second1, PageId second2) throws Exception {
+        long[] resolution = new long[rounds];
+        int aborts = 0;
+        for (int r = 0; r < rounds; r++) {
+            TransactionId t1 = new TransactionId();
+            TransactionId t2 = new TransactionId();
+            bp.getPage(t1, first1, perm1);
+            bp.getPage(t2, first2, perm2);
+            AtomicLong firstAbort = new AtomicLong();
+            AtomicInteger aborted = new AtomicInteger();
+            long start = System.nanoTime();
+            Thread w1 = write(bp, t1, second1, firstAbort, aborted);
+            Thread w2 = write(bp, t2, second2, firstAbort, aborted);
+            w1.join();
+            w2.join();
+            resolution[r] = firstAbort.get() - start;
+            aborts += aborted.get();
+        }
+        BenchOutput.report("deadlock", "%-24s %-11s time-to-resolution mean=%.1fms aborts/deadlock=%.2f",
+                policy, kind, BenchOutput.meanMicros(resolution) / 1000, (double) aborts / rounds);
+    }
+
+    private static Thread write(BufferPool bp, TransactionId tid, PageId pid,
+            AtomicLong firstAbort, AtomicInteger aborted) {
+        Thread t = new Thread(() -> {
+            boolean commit = true;
+            try {
+                bp.getPage(tid, pid, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                firstAbort.compareAndSet(0, System.nanoTime());
+                aborted.incrementAndGet();
+                commit = false;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            try {
+                bp.transactionComplete(tid, commit);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /** Writers queue for one page and hold it a while: no deadlock, so every abort is wasted. */
+    private static void queue(BufferPool bp, String policy, PageId pid) throws Exception {
+        AtomicInteger commits = new AtomicInteger();
+        AtomicInteger aborts = new AtomicInteger();
+        Thread[] writers = new Thread[QUEUE_WRITERS];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    bp.getPage(tid, pid, Permissions.READ_WRITE);
+                    Thread.sleep(QUEUE_HOLD_MILLIS);
+                    bp.transactionComplete(tid, true);
+                    commits.incrementAndGet();
+                } catch (TransactionAbortedException e) {
+                    aborts.incrementAndGet();
+                    try {
+                        bp.transactionComplete(tid, false);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+        BenchOutput.report("deadlock", "%-24s no-deadlock queue of %d writers: commits=%d aborts=%d",
+                policy, QUEUE_WRITERS, commits.get(), aborts.get());
+    }
+
+    private static HeapFile createEmptyTable(int pages) throws IOException {
+        File file = File.createTempFile("deadlockbench", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            byte[] empty = HeapPage.createEmptyPageData();
+            for (int i = 0; i < pages; i++) {
+                out.write(empty);
+            }
+        }
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+}
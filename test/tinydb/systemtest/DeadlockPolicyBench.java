@@ -0,0 +1,105 @@
+package tinydb.systemtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tinydb.common.Database;
+import tinydb.common.Permissions;
+import tinydb.common.Utility;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPage;
+import tinydb.storage.HeapPageId;
+import tinydb.transaction.DeadlockPolicy;
+import tinydb.transaction.DetectingDeadlockPolicy;
+import tinydb.transaction.TimeoutDeadlockPolicy;
+import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
+import tinydb.transaction.WaitDieDeadlockPolicy;
+import tinydb.transaction.WoundWaitDeadlockPolicy;
+
+/**
+ * Throughput and abort rate of the deadlock policies under an OLTP-like
+ * mix: every transaction write-locks two random pages of a small table, in
+ * random order, holding each for a moment, so deadlocks are frequent.
+ * <p>
+ * Usage: DeadlockPolicyBench [seconds per run]
+ */
+public class DeadlockPolicyBench {
+
+    private static final int PAGES = 8;
+    private static final int[] THREADS = {2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Integer.parseInt(args[0]) : 5) * 1000L;
+        for (int threads : THREADS) {
+            DeadlockPolicy[] policies = {new TimeoutDeadlockPolicy(), new DetectingDeadlockPolicy(),
+                    new WaitDieDeadlockPolicy(), new WoundWaitDeadlockPolicy()};
+            for (DeadlockPolicy policy : policies) {
+                run(policy, threads, millis);
+            }
+        }
+    }
+
+    private static void run(DeadlockPolicy policy, int threads, long millis) throws Exception {
+        Database.reset();
+        Database.setDeadlockPolicy(policy);
+        HeapFile f = createEmptyTable(PAGES);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        AtomicInteger commits = new AtomicInteger();
+        AtomicInteger aborts = new AtomicInteger();
+        long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        bp.getPage(tid, new HeapPageId(f.getId(), rnd.nextInt(PAGES)), Permissions.READ_WRITE);
+                        Thread.sleep(1);
+                        bp.getPage(tid, new HeapPageId(f.getId(), rnd.nextInt(PAGES)), Permissions.READ_WRITE);
+                        Thread.sleep(1);
+                        bp.transactionComplete(tid, true);
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                        try {
+                            bp.transactionComplete(tid, false);
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        int c = commits.get();
+        int a = aborts.get();
+        BenchOutput.report("deadlock-policy", "%-24s threads=%d commits/s=%.1f abort-rate=%.1f%%",
+                policy.getClass().getSimpleName(), threads, c * 1000.0 / millis,
+                c + a == 0 ? 0.0 : 100.0 * a / (c + a));
+    }
+
+    private static HeapFile createEmptyTable(int pages) throws IOException {
+        File file = File.createTempFile("policybench", ".dat");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            byte[] empty = HeapPage.createEmptyPageData();
+            for (int i = 0; i < pages; i++) {
+                out.write(empty);
+            }
+        }
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+}
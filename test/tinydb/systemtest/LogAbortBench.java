@@ -0,0 +1,64 @@
+package tinydb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import tinydb.common.Database;
+import tinydb.common.Utility;
+import tinydb.storage.HeapFile;
+import tinydb.transaction.Transaction;
+
+/**
+ * Abort latency as the log grows. A transaction logs one update, then other
+ * transactions commit many single-row inserts after it, and the first one
+ * aborts. Rolling back along the chain of its own records does not depend
+ * on how much the others logged.
+ * <p>
+ * Usage: LogAbortBench [largest number of committed transactions]
+ */
+public class LogAbortBench {
+
+    public static void main(String[] args) throws Exception {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        // warm up the JIT
+        run(100, false);
+        for (int n = 125; n <= largest; n *= 4) {
+            run(n, true);
+        }
+    }
+
+    private static void run(int commits, boolean report) throws Exception {
+        Database.reset();
+        HeapFile hf1 = createTable();
+        HeapFile hf2 = createTable();
+
+        Transaction victim = new Transaction();
+        victim.start();
+        Database.getBufferPool().insertTuple(victim.getId(), hf2.getId(), Utility.getHeapTuple(-1, 2));
+        // log the update now, before the others, as eviction would
+        Database.getBufferPool().flushAllPages();
+
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf1.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        Database.getLogFile().force();
+        long logBytes = new File("log").length();
+
+        long start = System.nanoTime();
+        victim.abort();
+        long nanos = System.nanoTime() - start;
+        if (report) {
+            BenchOutput.report("log-abort", "committed=%d log=%dB abort=%.2fms",
+                    commits, logBytes, nanos / 1e6);
+        }
+    }
+
+    private static HeapFile createTable() throws IOException {
+        File file = File.createTempFile("abortbench", ".dat");
+        file.deleteOnExit();
+        return Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+}
@@ -14,6 +14,7 @@ import tinydb.execution.SeqScan;
 import tinydb.storage.*;
 import tinydb.transaction.Transaction;
 import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
 
 import static org.junit.Assert.*;
 
@@ -453,6 +454,594 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAsyncCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 commits asynchronously, the flusher forces its commit record
+        // crash: T1 data should be there
+        Transaction t1 = new Transaction();
+        t1.setSynchronousCommit(false);
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        Database.getLogFile().force();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommitLostCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 commits asynchronously
+        // crash before its commit record is on disk, leaving part of it
+        // T1 should be rolled back, and the log usable afterwards
+        Transaction t1 = new Transaction();
+        t1.setSynchronousCommit(false);
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        try (RandomAccessFile log = new RandomAccessFile("log", "rw")) {
+            // the commit record is an int and two longs
+            log.setLength(log.length() - 7);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        insertRow(hf1, t, 4);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits without writing its page
+        // crash: recovery should redo T1
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(2, 504 - onDisk.getNumEmptySlots());
+        assertEquals(1, Database.getBufferPool().getUnwrittenPageCount());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCommitAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits without writing its page
+        // T2 changes the same page and aborts: T1 data should stay
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        t2.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits without writing its page
+        // checkpoint writes it, T2 commits after the checkpoint
+        // crash: both should be there
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, Database.getBufferPool().getUnwrittenPageCount());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 21);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf2, t, 21, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceFlushBeforeNextWriter()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // T1 commits without writing its page, T2 changes the page and the
+        // page is flushed before T2 marks it dirty; T2 aborts
+        // T2's row must not reach the disk
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t2.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_WRITE);
+        p.insertTuple(Utility.getHeapTuple(4, 2));
+        Database.getBufferPool().flushAllPages();
+        p.markDirty(true, t2.getId());
+        t2.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceEviction()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.resetBufferPool(4).setNoForce(true);
+
+        // *** Test:
+        // more committed pages than fit in the pool are written back
+        // when they are evicted
+        for (int i = 0; i < 8; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 504; j++) {
+                Database.getBufferPool().insertTuple(t.getId(), hf1.getId(), Utility.getHeapTuple(i * 504 + j, 2));
+            }
+            t.commit();
+        }
+        assertEquals(8, hf1.numPages());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 0, true);
+        look(hf1, t, 8 * 504 - 1, true);
+        t.commit();
+    }
+
+    @Test public void TestStealCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.resetBufferPool(2).setSteal(true);
+
+        // *** Test:
+        // T1 changes more pages than fit in the pool, so some are written
+        // before it commits
+        // crash: recovery should undo them
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int j = 0; j < 3 * 504; j++) {
+            Database.getBufferPool().insertTuple(t1.getId(), hf1.getId(), Utility.getHeapTuple(100 + j, 2));
+        }
+        // whichever pages were stolen, one of them holds T1's rows on disk
+        boolean stolen = false;
+        for (int i = 0; i < hf1.numPages(); i++) {
+            HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), i));
+            Iterator<Tuple> it = onDisk.iterator();
+            while (it.hasNext()) {
+                if (((IntField) it.next().getField(0)).getValue() >= 100) {
+                    stolen = true;
+                }
+            }
+        }
+        assertTrue(stolen);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 100, false);
+        look(hf1, t, 100 + 3 * 504 - 1, false);
+        t.commit();
+    }
+
+    @Test public void TestDeltaRecordSize()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // a second update of a logged page only logs the bytes it changed
+        File log = new File("log");
+        long before = log.length();
+        doInsert(hf1, 2, -1);
+        assertTrue(log.length() - before < BufferPool.getPageSize() / 4);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestDeltaCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 5, 6);
+
+        // *** Test:
+        // T1's update is logged as a delta and written before it commits,
+        // T2 commits a delta to another page
+        // crash: recovery should undo T1 and keep T2
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf1, 4, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 5, true);
+        look(hf2, t, 6, true);
+        look(hf2, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestManyTransactionsCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setNoForce(true);
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // many NO-FORCE commits and aborts after a checkpoint, interleaved
+        // with a transaction that is still running
+        // crash: recovery should redo the commits only
+        Transaction open = new Transaction();
+        open.start();
+        insertRow(hf2, open, 1000);
+        for (int i = 0; i < 100; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf1, t, 10 + i);
+            if (i % 10 == 0) {
+                Database.getBufferPool().flushAllPages();
+                t.abort();
+            } else {
+                t.commit();
+            }
+        }
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 10, false);
+        look(hf1, t, 11, true);
+        look(hf1, t, 99, true);
+        look(hf1, t, 100, false);
+        look(hf1, t, 109, true);
+        look(hf2, t, 1000, false);
+        t.commit();
+    }
+
+    @Test public void TestAbortAcrossCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 logs updates before and after a checkpoint that truncates the
+        // log, then aborts: both are rolled back
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf1, 4, -1);
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logTruncate();
+        insertRow(hf1, t1, 5);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 4, true);
+        look(hf2, t, 3, false);
+        look(hf1, t, 5, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 4, true);
+        look(hf2, t, 3, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setCleanPageTarget(0.0);
+        Database.getBufferPool().setMaxCleanerWritesPerSecond(10);
+        Database.getBufferPool().startPageCleaner();
+
+        // *** Test:
+        // T1 commits three pages without writing them, a checkpoint leaves
+        // them to the page cleaner, which writes one per round, T2 commits
+        // after the checkpoint and T3 runs
+        // crash: recovery should redo T1 and T2 from before the checkpoint
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int j = 0; j < 3 * 504; j++) {
+            Database.getBufferPool().insertTuple(t1.getId(), hf1.getId(), Utility.getHeapTuple(100 + j, 2));
+        }
+        t1.commit();
+
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 21);
+        t2.commit();
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 22);
+
+        Database.getBufferPool().stopPageCleaner();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 100, true);
+        look(hf1, t, 100 + 504, true);
+        look(hf1, t, 100 + 3 * 504 - 1, true);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCleaner()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        Database.getBufferPool().setNoForce(true);
+        Database.getBufferPool().setCleanPageTarget(0.0);
+        Database.getBufferPool().startPageCleaner();
+
+        // *** Test:
+        // the page cleaner writes the pages a checkpoint found dirty
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        t1.commit();
+        assertEquals(1, Database.getBufferPool().getUnwrittenPageCount());
+
+        Database.getLogFile().logCheckpoint();
+        for (int i = 0; i < 50 && Database.getBufferPool().getUnwrittenPageCount() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, Database.getBufferPool().getUnwrittenPageCount());
+        Database.getBufferPool().stopPageCleaner();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    // start threads that each log a commit record for one of tids and wait
+    // for it to be on disk
+    List<Thread> startCommitters(List<TransactionId> tids, List<Throwable> errors) {
+        List<Thread> threads = new ArrayList<>();
+        for (TransactionId tid : tids) {
+            Thread th = new Thread(() -> {
+                try {
+                    Database.getLogFile().logCommit(tid);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            // a committer stuck on a lost flush must not keep the JVM alive
+            th.setDaemon(true);
+            th.start();
+            threads.add(th);
+        }
+        return threads;
+    }
+
+    List<TransactionId> beginTransactions(int n) throws IOException {
+        List<TransactionId> tids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            Database.getLogFile().logXactionBegin(tid);
+            tids.add(tid);
+        }
+        return tids;
+    }
+
+    @Test public void TestGroupCommitSharesFlushes()
+            throws IOException, InterruptedException {
+        setup();
+        Database.getLogFile().setGroupCommit(2000, 64);
+
+        // *** Test:
+        // concurrent committers all return, with fewer forces than commits
+        List<TransactionId> tids = beginTransactions(32);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        long before = Database.getLogFile().getFlushCount();
+        for (Thread th : startCommitters(tids, errors)) {
+            th.join(10000);
+            assertFalse(th.isAlive());
+        }
+        assertTrue(errors.isEmpty());
+        long flushes = Database.getLogFile().getFlushCount() - before;
+        assertTrue(flushes >= 1);
+        assertTrue("flushes " + flushes, flushes < tids.size());
+    }
+
+    @Test public void TestGroupCommitBatch()
+            throws IOException, InterruptedException {
+        setup();
+        // the window never ends in this test, only the batch starts a flush
+        Database.getLogFile().setGroupCommit(60000000, 4);
+
+        // *** Test:
+        // four committers fill the batch and share exactly one force
+        List<TransactionId> tids = beginTransactions(4);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        long before = Database.getLogFile().getFlushCount();
+        for (Thread th : startCommitters(tids, errors)) {
+            th.join(10000);
+            assertFalse(th.isAlive());
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(1, Database.getLogFile().getFlushCount() - before);
+    }
+
+    @Test public void TestGroupCommitWindow()
+            throws IOException {
+        setup();
+        Database.getLogFile().setGroupCommit(300000, 64);
+
+        // *** Test:
+        // a lone committer waits out the window for others to join
+        TransactionId tid = beginTransactions(1).get(0);
+        long start = System.nanoTime();
+        Database.getLogFile().logCommit(tid);
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("waited " + millis + "ms", millis >= 250);
+    }
+
+    @Test public void TestTruncateReleasesFlushWaiters()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        // T1 logs its updates before a checkpoint, which therefore keeps the
+        // log from the start of T1 and does not truncate it
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3);
+        insertRow(hf1, t1, 4);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        t1.commit();
+        Database.getLogFile().setGroupCommit(60000000, 64);
+
+        // *** Test:
+        // a committer waits for a flush of the old log; truncation drops the
+        // records before T1, so the rewritten log ends before the offset it
+        // waits for, and only the new generation releases it
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread waiter = startCommitters(beginTransactions(1), errors).get(0);
+        for (int i = 0; i < 50 && waiter.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        Database.getLogFile().logTruncate();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(errors.isEmpty());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
@@ -0,0 +1,97 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.DbException;
+import tinydb.execution.SeqScan;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.IntField;
+import tinydb.storage.LruKReplacementPolicy;
+import tinydb.storage.Tuple;
+import tinydb.transaction.Transaction;
+import tinydb.transaction.TransactionAbortedException;
+
+/**
+ * Runs scans, inserts and aborts against a BufferPool that keeps page bytes off-heap.
+ */
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+
+    private static void useOffHeapPool(int pages) {
+        Database.resetBufferPool(new BufferPool(pages, 2, () -> new LruKReplacementPolicy(pages), true));
+    }
+
+    /** @return how many copies of the magic tuple the scan sees */
+    private static int countMagicTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple v = ss.next();
+            if (((IntField) v.getField(0)).getValue() == -42
+                    && ((IntField) v.getField(1)).getValue() == -43) {
+                count++;
+            }
+        }
+        ss.close();
+        return count;
+    }
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 20, null, tuples);
+        useOffHeapPool(8);
+        SystemTestUtil.matchTuples(f, tuples);
+        // second pass is served from the frames that survived the first one
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void testInsertCommitAbort() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+        useOffHeapPool(16);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        AbortEvictionTest.insertRow(f, t);
+        t.transactionComplete(true);
+
+        // only the committed copy survives the abort
+        t = new Transaction();
+        t.start();
+        assertEquals(1, countMagicTuples(f, t));
+        t.commit();
+    }
+
+    @Test public void testFramesAreReleased() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+        useOffHeapPool(2);
+        for (int i = 0; i < 3; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+            t.commit();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
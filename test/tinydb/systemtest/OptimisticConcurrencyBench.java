@@ -0,0 +1,118 @@
+package tinydb.systemtest;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tinydb.common.Database;
+import tinydb.common.Permissions;
+import tinydb.common.Utility;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPage;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.Tuple;
+import tinydb.transaction.ConcurrencyControl;
+import tinydb.transaction.Transaction;
+import tinydb.transaction.TransactionAbortedException;
+import tinydb.transaction.TransactionId;
+
+/**
+ * Optimistic concurrency control against two-phase locking on a
+ * low-contention mix: every transaction reads four random pages of a
+ * 100-page table, and one in four also replaces a row on another random
+ * page, so transactions rarely touch the same page.
+ * <p>
+ * Usage: OptimisticConcurrencyBench [seconds per run]
+ */
+public class OptimisticConcurrencyBench {
+
+    private static final int PAGES = 100;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Integer.parseInt(args[0]) : 5) * 1000L;
+        for (int threads : THREADS) {
+            for (ConcurrencyControl cc : ConcurrencyControl.values()) {
+                run(cc, threads, millis);
+            }
+        }
+    }
+
+    private static void run(ConcurrencyControl cc, int threads, long millis) throws Exception {
+        Database.reset();
+        HeapFile f = createTable();
+        BufferPool bp = Database.resetBufferPool(3 * PAGES);
+        bp.setConcurrencyControl(cc);
+
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        AtomicLong rows = new AtomicLong();
+        long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < end) {
+                    Transaction t = new Transaction();
+                    try {
+                        t.start();
+                        for (int k = 0; k < 4; k++) {
+                            HeapPage p = (HeapPage) bp.getPage(t.getId(),
+                                    new HeapPageId(f.getId(), rnd.nextInt(PAGES)), Permissions.READ_ONLY);
+                            Iterator<Tuple> it = p.iterator();
+                            while (it.hasNext()) {
+                                it.next();
+                                rows.incrementAndGet();
+                            }
+                        }
+                        if (rnd.nextInt(4) == 0) {
+                            HeapPage p = (HeapPage) bp.getPage(t.getId(),
+                                    new HeapPageId(f.getId(), rnd.nextInt(PAGES)), Permissions.READ_WRITE);
+                            p.deleteTuple(p.iterator().next());
+                            p.insertTuple(Utility.getHeapTuple(rnd.nextInt(1000), 2));
+                            p.markDirty(true, t.getId());
+                        }
+                        t.commit();
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                        try {
+                            t.abort();
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        long c = commits.get();
+        long a = aborts.get();
+        BenchOutput.report("occ", "%-10s threads=%d commits/s=%.1f rows-read/s=%.0f abort-rate=%.1f%%",
+                cc, threads, c * 1000.0 / millis, rows.get() * 1000.0 / millis,
+                c + a == 0 ? 0.0 : 100.0 * a / (c + a));
+    }
+
+    /** @return a table of PAGES full pages, written to disk */
+    private static HeapFile createTable() throws Exception {
+        File file = File.createTempFile("occbench", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(3 * PAGES);
+        TransactionId load = new TransactionId();
+        for (int i = 0; i < PAGES * 504; i++) {
+            bp.insertTuple(load, f.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(load, true);
+        bp.flushAllPages();
+        return f;
+    }
+}
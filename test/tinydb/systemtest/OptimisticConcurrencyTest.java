@@ -0,0 +1,130 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.execution.SeqScan;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPageId;
+import tinydb.transaction.ConcurrencyControl;
+import tinydb.transaction.Transaction;
+import tinydb.transaction.TransactionAbortedException;
+
+/**
+ * Tests that optimistic transactions keep their writes private until they
+ * commit, and abort at commit if a page they read was changed meanwhile.
+ */
+public class OptimisticConcurrencyTest extends SimpleDbTestBase {
+
+    private static int countRows(HeapFile f, Transaction t) throws Exception {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    @Before public void useOptimistic() {
+        Database.getBufferPool().setConcurrencyControl(ConcurrencyControl.OPTIMISTIC);
+    }
+
+    @Test public void writesArePrivateUntilCommit() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction writer = begin();
+        AbortEvictionTest.insertRow(f, writer);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, writer));
+
+        // no locks are held, so the reader neither waits nor sees the row
+        Transaction reader = begin();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        assertFalse(Database.getBufferPool().holdsLock(writer.getId(), new HeapPageId(f.getId(), 0)));
+
+        reader.commit();
+        writer.commit();
+
+        Transaction later = begin();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, later));
+        assertEquals(11, countRows(f, later));
+        later.commit();
+    }
+
+    @Test public void conflictingCommitAborts() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction t1 = begin();
+        assertEquals(10, countRows(f, t1));
+
+        Transaction t2 = begin();
+        AbortEvictionTest.insertRow(f, t2);
+        t2.commit();
+
+        // t1 read the page t2 changed
+        AbortEvictionTest.insertRow(f, t1);
+        try {
+            t1.commit();
+            fail("t1 committed after reading a page changed by t2");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        Transaction check = begin();
+        assertEquals(11, countRows(f, check));
+        check.commit();
+    }
+
+    @Test public void disjointCommitsSucceed() throws Exception {
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        assertEquals(10, countRows(f1, t1));
+        assertEquals(10, countRows(f2, t2));
+        AbortEvictionTest.insertRow(f1, t1);
+        AbortEvictionTest.insertRow(f2, t2);
+        t2.commit();
+        t1.commit();
+
+        Transaction check = begin();
+        assertEquals(11, countRows(f1, check));
+        assertEquals(11, countRows(f2, check));
+        check.commit();
+    }
+
+    @Test public void lockingCommitIsValidated() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction reader = begin();
+        assertEquals(10, countRows(f, reader));
+
+        Database.getBufferPool().setConcurrencyControl(ConcurrencyControl.LOCKING);
+        Transaction writer = begin();
+        AbortEvictionTest.insertRow(f, writer);
+        writer.commit();
+
+        AbortEvictionTest.insertRow(f, reader);
+        try {
+            reader.commit();
+            fail("an optimistic transaction missed a commit of a locking one");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.DbException;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPage;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.IntField;
+import tinydb.storage.Tuple;
+import tinydb.transaction.Transaction;
+import tinydb.transaction.TransactionAbortedException;
+
+/**
+ * Runs transactions while the background page cleaner writes their pages.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    @After public void stopCleaner() {
+        Database.getBufferPool().stopPageCleaner();
+    }
+
+    /** @return true if the magic tuple is in the file on disk, bypassing the BufferPool */
+    private static boolean magicTupleOnDisk(HeapFile f) {
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPage p = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() == -42
+                        && ((IntField) t.getField(1)).getValue() == -43) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void waitUntilOnDisk(HeapFile f) throws InterruptedException {
+        for (int i = 0; i < 50 && !magicTupleOnDisk(f); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(magicTupleOnDisk(f));
+    }
+
+    @Test public void testAbortAfterCleaning()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+        Database.resetBufferPool(4);
+        Database.getBufferPool().setCleanPageTarget(1.0);
+        Database.getBufferPool().startPageCleaner();
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        // the uncommitted page reaches the disk before the transaction ends
+        waitUntilOnDisk(f);
+        t.abort();
+
+        // the abort undoes the write from the log
+        assertFalse(magicTupleOnDisk(f));
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    @Test public void testCommitAfterCleaning()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+        Database.resetBufferPool(4);
+        Database.getBufferPool().setCleanPageTarget(1.0);
+        Database.getBufferPool().startPageCleaner();
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        waitUntilOnDisk(f);
+        t.commit();
+
+        Database.getBufferPool().stopPageCleaner();
+        Database.resetBufferPool(4);
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
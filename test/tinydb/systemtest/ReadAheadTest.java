@@ -0,0 +1,68 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.DbException;
+import tinydb.common.Utility;
+import tinydb.storage.HeapFile;
+import tinydb.storage.Page;
+import tinydb.storage.PageId;
+import tinydb.transaction.TransactionAbortedException;
+
+/**
+ * Checks that sequential scans read ahead, and still see every tuple once.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /** HeapFile that counts multi-page reads. */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicInteger batches = new AtomicInteger();
+
+        CountingHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public List<Page> readPages(List<PageId> pids) {
+            if (pids.size() > 1) {
+                batches.incrementAndGet();
+            }
+            return super.readPages(pids);
+        }
+    }
+
+    @Test public void testSequentialScan()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File temp = SystemTestUtil.createRandomHeapFileUnopened(2, 512 * 40, 1 << 16, null, tuples);
+        CountingHeapFile f = new CountingHeapFile(temp);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        Database.resetBufferPool(100);
+
+        SystemTestUtil.matchTuples(f, tuples);
+        for (int i = 0; i < 50 && f.batches.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(f.batches.get() > 0);
+
+        // a scan over a pool smaller than the table, with read-ahead evicting
+        // pages of the same scan
+        Database.resetBufferPool(16);
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,135 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.execution.SeqScan;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.IntField;
+import tinydb.storage.RecordId;
+import tinydb.storage.Tuple;
+import tinydb.transaction.Transaction;
+
+/**
+ * Tests that transactions changing different rows of one record-locked page
+ * do not block each other, and that commit and abort only affect their own rows.
+ */
+public class RecordLockingTest extends SimpleDbTestBase {
+
+    /** Time after which a thread that has not finished is assumed blocked, in ms */
+    private static final int TIMEOUT = 200;
+
+    private static Tuple findRow(HeapFile f, Transaction t, List<Integer> row) throws Exception {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        ss.open();
+        try {
+            while (ss.hasNext()) {
+                Tuple v = ss.next();
+                if (SystemTestUtil.tupleToList(v).equals(row)) {
+                    return v;
+                }
+            }
+            return null;
+        } finally {
+            ss.close();
+        }
+    }
+
+    /**
+     * @return the row stored in the given slot of the first page, without
+     *     scanning, which would lock every row of the page
+     */
+    private static Tuple rowAt(HeapFile f, List<List<Integer>> rows, int slot) {
+        Tuple row = new Tuple(f.getTupleDesc());
+        row.setField(0, new IntField(rows.get(slot).get(0)));
+        row.setField(1, new IntField(rows.get(slot).get(1)));
+        row.setRecordId(new RecordId(new HeapPageId(f.getId(), 0), slot));
+        return row;
+    }
+
+    private static Thread run(Runnable r) {
+        Thread thread = new Thread(r);
+        thread.start();
+        return thread;
+    }
+
+    @Test public void concurrentDeletesOnOnePage() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, rows);
+        assertEquals(1, f.numPages());
+        BufferPool bp = Database.getBufferPool();
+        bp.setRecordLocking(f.getId(), true);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.deleteTuple(t1.getId(), rowAt(f, rows, 0));
+
+        // t1 holds an intention lock on the page, so t2 can delete another row
+        Transaction t2 = new Transaction();
+        t2.start();
+        List<Exception> errors = new ArrayList<>();
+        Thread deleter = run(() -> {
+            try {
+                bp.deleteTuple(t2.getId(), rowAt(f, rows, 1));
+            } catch (Exception e) {
+                errors.add(e);
+            }
+        });
+        deleter.join(TIMEOUT);
+        assertFalse("t2 was blocked by t1", deleter.isAlive());
+        assertTrue(errors.isEmpty());
+
+        t1.abort();
+        t2.commit();
+
+        // t1's row is back, t2's row is gone, in memory and on disk
+        for (int i = 0; i < 2; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            assertNotNull(findRow(f, t, rows.get(0)));
+            assertNull(findRow(f, t, rows.get(1)));
+            t.commit();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setRecordLocking(f.getId(), true);
+        }
+    }
+
+    @Test public void readerWaitsForUncommittedInsert() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, rows);
+        Database.getBufferPool().setRecordLocking(f.getId(), true);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        AbortEvictionTest.insertRow(f, writer);
+
+        Transaction reader = new Transaction();
+        reader.start();
+        boolean[] found = new boolean[1];
+        Thread scan = run(() -> {
+            try {
+                found[0] = AbortEvictionTest.findMagicTuple(f, reader);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        scan.join(TIMEOUT);
+        assertTrue("reader saw an uncommitted row", scan.isAlive());
+
+        writer.commit();
+        scan.join();
+        assertTrue(found[0]);
+        reader.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
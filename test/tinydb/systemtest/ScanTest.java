@@ -85,6 +85,12 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            @Override
+            public List<Page> readPages(List<PageId> pids) {
+                readCount += pids.size();
+                return super.readPages(pids);
+            }
+
             public int readCount = 0;
         }
 
@@ -0,0 +1,107 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.Permissions;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.storage.HeapPageId;
+import tinydb.storage.LruKReplacementPolicy;
+import tinydb.transaction.ConcurrencyControl;
+import tinydb.transaction.Transaction;
+
+/**
+ * Concurrent readers and writers on a pool split into several shards must
+ * never hold more pages than the pool was sized for.
+ */
+public class ShardedBufferPoolTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 8;
+    private static final int TABLE_PAGES = 40;
+    private static final int READERS = 8;
+    private static final int WRITERS = 6;
+    private static final int ROUNDS = 500;
+
+    @Test public void testBudgetHoldsAcrossShards() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        List<HeapFile> small = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            small.add(SystemTestUtil.createRandomHeapFile(2, 10, null, null));
+        }
+        BufferPool pool = new BufferPool(POOL_PAGES, 4, () -> new LruKReplacementPolicy(POOL_PAGES));
+        Database.resetBufferPool(pool);
+        // optimistic writers admit private copies at commit, while the
+        // readers may evict the resident copy
+        pool.setConcurrencyControl(ConcurrencyControl.OPTIMISTIC);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger maxResident = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            workers.add(new Thread(() -> {
+                try {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int r = 0; r < ROUNDS; r++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        for (int j = 0; j < 4; j++) {
+                            HeapPageId pid = new HeapPageId(big.getId(), rnd.nextInt(TABLE_PAGES));
+                            pool.getPage(t.getId(), pid, Permissions.READ_ONLY);
+                        }
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (HeapFile f : small) {
+            // writers on their own tables never conflict, so every commit
+            // admits its copy while the readers evict around it
+            workers.add(new Thread(() -> {
+                try {
+                    for (int r = 0; r < ROUNDS; r++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        AbortEvictionTest.insertRow(f, t);
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        Thread sampler = new Thread(() -> {
+            while (!done.get()) {
+                maxResident.accumulateAndGet(pool.getResidentPageCount(), Math::max);
+            }
+        });
+
+        sampler.start();
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        done.set(true);
+        sampler.join();
+
+        assertNull(failure.get());
+        assertTrue("resident pages " + maxResident.get() + " exceed " + POOL_PAGES,
+                maxResident.get() <= POOL_PAGES);
+        assertTrue(pool.getResidentPageCount() <= POOL_PAGES);
+    }
+}
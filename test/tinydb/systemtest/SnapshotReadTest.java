@@ -0,0 +1,121 @@
+package tinydb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import tinydb.common.Database;
+import tinydb.common.DbException;
+import tinydb.execution.SeqScan;
+import tinydb.storage.BufferPool;
+import tinydb.storage.HeapFile;
+import tinydb.transaction.Transaction;
+
+/**
+ * Tests that read-only transactions read a consistent snapshot without
+ * blocking on, or being blocked by, writers.
+ */
+public class SnapshotReadTest extends SimpleDbTestBase {
+
+    /** Time after which a thread that has not finished is assumed blocked, in ms */
+    private static final int TIMEOUT = 200;
+
+    private static int countRows(HeapFile f, Transaction t) throws Exception {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction reader = new Transaction();
+        reader.startReadOnly();
+        assertEquals(10, countRows(f, reader));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        AbortEvictionTest.insertRow(f, writer);
+        writer.commit();
+        assertTrue(Database.getBufferPool().getRetainedVersionCount() > 0);
+
+        // still the rows as of startReadOnly
+        assertEquals(10, countRows(f, reader));
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+
+        Transaction later = new Transaction();
+        later.startReadOnly();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, later));
+        later.commit();
+
+        // nobody needs the old version once the reader is done
+        reader.commit();
+        assertEquals(0, Database.getBufferPool().getRetainedVersionCount());
+    }
+
+    @Test public void readerDoesNotWaitForWriter() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction writer = new Transaction();
+        writer.start();
+        AbortEvictionTest.insertRow(f, writer);
+
+        Transaction reader = new Transaction();
+        reader.startReadOnly();
+        int[] rows = new int[1];
+        List<Exception> errors = new ArrayList<>();
+        Thread scan = new Thread(() -> {
+            try {
+                rows[0] = countRows(f, reader);
+            } catch (Exception e) {
+                errors.add(e);
+            }
+        });
+        scan.start();
+        scan.join(TIMEOUT);
+        assertFalse("reader was blocked by an uncommitted insert", scan.isAlive());
+        assertTrue(errors.isEmpty());
+        assertEquals(10, rows[0]);
+
+        // and the writer is not blocked by the reader
+        writer.commit();
+        reader.commit();
+    }
+
+    @Test public void readerCannotWrite() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        Transaction reader = new Transaction();
+        reader.startReadOnly();
+        try {
+            AbortEvictionTest.insertRow(f, reader);
+            fail("a snapshot reader wrote a page");
+        } catch (DbException e) {
+            // expected
+        }
+        reader.commit();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @Test public void readOnlyTransactionIsNotLogged() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<>());
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction reader = new Transaction();
+        reader.startReadOnly();
+        assertTrue(reader.isReadOnly());
+        assertEquals(10, countRows(f, reader));
+        reader.commit();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}